@@ -0,0 +1,89 @@
+package com.craftinginterpreters.lox;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Times each phase of running a script on its own. Every benchmark starts
+// from the output of the phases before it, prepared once per trial, so a
+// change to one phase shows up only in that phase's numbers.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Phases {
+    @Param({"fib", "binary_trees", "method_call", "field_access",
+            "string_concat", "closures", "instantiation"})
+    public String workload;
+
+    private String source;
+    private List<Token> tokens;
+    private List<Stmt> statements;
+    private Interpreter interpreter;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = load(workload);
+        tokens = new Scanner(source).scanTokens();
+        statements = new Parser(tokens).parse();
+        interpreter = new Interpreter();
+        new Resolver(interpreter.globals).resolve(statements);
+        if (Lox.hadError) {
+            throw new IllegalStateException(workload + " has errors.");
+        }
+
+        // The workloads print their results, which would only measure the
+        // console.
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver(interpreter.globals).resolve(statements);
+        return statements;
+    }
+
+    @Benchmark
+    public Object interpret() {
+        interpreter.interpret(statements);
+        return interpreter.globals;
+    }
+
+    private static String load(String workload) {
+        String name = "/workloads/" + workload + ".lox";
+        try (InputStream in = Phases.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IllegalArgumentException("No workload " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+}
@@ -5,7 +5,7 @@ class AstPrinter implements Expr.Visitor<String> {
     }
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme,
+        return parenthesize(expr.operator.lexeme(),
                 expr.left, expr.right);
     }
 
@@ -22,7 +22,7 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+        return parenthesize(expr.operator.lexeme(), expr.right);
     }
     @Override
     public String visitTernaryExpr(Expr.Ternary expr) {
@@ -63,7 +63,7 @@ class AstPrinter implements Expr.Visitor<String> {
     }
     @Override
     public String visitLogicalExpr(Expr.Logical expr){
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+        return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
     }
     private String parenthesize(String name, Expr... exprs) {
         StringBuilder builder = new StringBuilder();
@@ -1,10 +0,0 @@
-package com.craftinginterpreters.lox;
-
-class BreakException extends RuntimeException {
-    final Token token;
-
-    BreakException(Token token, String message) {
-        super(message);
-        this.token = token;
-    }
-}
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.craftinginterpreters.lox;
+
+// Where a closure finds one of the variables it captures when it's
+// created: a slot in the enclosing function's frame if local, otherwise
+// an entry in the enclosing function's own captures.
+class Capture {
+    final boolean local;
+    final int index;
+    // Set when the variable is assigned anywhere, so the closure and the
+    // frame share a Cell instead of each holding a copy.
+    boolean cell;
+
+    Capture(boolean local, int index, boolean cell) {
+        this.local = local;
+        this.index = index;
+        this.cell = cell;
+    }
+}
@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// A captured variable that's assigned somewhere, so it can't be copied.
+// The first closure to capture it replaces the value in its slot with a
+// Cell, which every reader and writer of the slot then goes through.
+class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,66 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class Chunk {
+    byte[] code = new byte[16];
+    int count = 0;
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+
+    // Run-length encoded line table: lines[i] holds for every instruction
+    // from lineStarts[i] up to the next run.
+    private int[] lineStarts = new int[4];
+    private int[] lines = new int[4];
+    private int lineRuns = 0;
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+        }
+        if (lineRuns == 0 || lines[lineRuns - 1] != line) {
+            if (lineRuns == lines.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineRuns * 2);
+                lines = Arrays.copyOf(lines, lineRuns * 2);
+            }
+            lineStarts[lineRuns] = count;
+            lines[lineRuns] = line;
+            lineRuns++;
+        }
+        code[count++] = (byte) b;
+    }
+
+    int addConstant(Object value) {
+        // Numbers and strings are immutable, so equal literals can share a
+        // slot. Anything else gets its own entry.
+        boolean shareable = value instanceof Double || value instanceof String;
+        if (shareable) {
+            Integer existing = constantIndexes.get(value);
+            if (existing != null) return existing;
+        }
+
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        if (shareable) constantIndexes.put(value, constantCount);
+        return constantCount++;
+    }
+
+    int getLine(int offset) {
+        int low = 0;
+        int high = lineRuns - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lineStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return lineRuns == 0 ? 0 : lines[low];
+    }
+}
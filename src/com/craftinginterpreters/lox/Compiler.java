@@ -0,0 +1,627 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_SLOTS = 256;
+    private static final int MAX_CONSTANTS = 65536;
+    private static final int MAX_JUMP = 65535;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        private Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        private Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+    private static class Loop {
+        final Loop enclosing;
+        final int localCount;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        private Loop(Loop enclosing, int localCount) {
+            this.enclosing = enclosing;
+            this.localCount = localCount;
+        }
+    }
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        private FunctionState(FunctionState enclosing, VmFunction function,
+                              FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // Slot zero holds the callee, or the receiver inside methods.
+            String slotZero = type == FunctionType.METHOD ||
+                    type == FunctionType.INITIALIZER ? "this" : "";
+            locals.add(new Local(slotZero, 0));
+        }
+    }
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        private ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private FunctionState current;
+    private ClassState currentClass;
+    private Token lastToken;
+    private int line = 1;
+
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction(null),
+                FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        mark(stmt.name);
+        int nameConstant = makeConstant(stmt.name.lexeme());
+        boolean isLocal = current.scopeDepth > 0;
+        if (isLocal) addLocal(stmt.name);
+
+        emitOp(OpCode.CLASS);
+        emitShort(nameConstant);
+        if (!isLocal) {
+            emitOp(OpCode.DEFINE_GLOBAL);
+            emitShort(nameConstant);
+        }
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (stmt.superclass != null) {
+            visitVariableExpr(stmt.superclass);
+
+            beginScope();
+            addLocal(new Token(TokenType.SUPER, "super", null,
+                    stmt.superclass.name.line));
+
+            loadVariable(stmt.name);
+            emitOp(OpCode.INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        loadVariable(stmt.name);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name.lexeme().equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            emitOp(OpCode.METHOD);
+            emitShort(makeConstant(method.name.lexeme()));
+        }
+        emitOp(OpCode.POP);
+
+        if (classState.hasSuperclass) endScope();
+
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.POP);
+        return null;
+    }
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        mark(stmt.name);
+        if (current.scopeDepth > 0) {
+            // Declared before the body so the function can refer to itself.
+            addLocal(stmt.name);
+            function(stmt, FunctionType.FUNCTION);
+        } else {
+            function(stmt, FunctionType.FUNCTION);
+            emitOp(OpCode.DEFINE_GLOBAL);
+            emitShort(makeConstant(stmt.name.lexeme()));
+        }
+        return null;
+    }
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emitOp(OpCode.POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT);
+        return null;
+    }
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        mark(stmt.keyword);
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emitOp(OpCode.RETURN);
+        }
+        return null;
+    }
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        mark(stmt.name);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+
+        if (current.scopeDepth > 0) {
+            // The initializer's value is already sitting in the new slot.
+            addLocal(stmt.name);
+        } else {
+            emitOp(OpCode.DEFINE_GLOBAL);
+            emitShort(makeConstant(stmt.name.lexeme()));
+        }
+        return null;
+    }
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop(stmt.condition, stmt.body, null);
+        return null;
+    }
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+        loop(stmt.condition, stmt.body, stmt.increment);
+        endScope();
+        return null;
+    }
+    private void loop(Expr condition, Stmt body, Expr increment) {
+        int loopStart = current.function.chunk.count;
+        compile(condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+
+        Loop loop = new Loop(current.loop, current.locals.size());
+        current.loop = loop;
+        compile(body);
+        current.loop = loop.enclosing;
+        if (increment != null) {
+            compile(increment);
+            emitOp(OpCode.POP);
+        }
+
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emitOp(OpCode.POP);
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+    }
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        mark(stmt.name);
+        Loop loop = current.loop;
+        if (loop == null) {
+            Lox.error(stmt.name, "Break must be within a while statement");
+            return null;
+        }
+
+        // Discard the locals of every scope being jumped out of, without
+        // forgetting them: code after the break in the same block still
+        // expects them to exist.
+        for (int i = current.locals.size() - 1; i >= loop.localCount; i--) {
+            emitOp(current.locals.get(i).isCaptured ?
+                    OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+        loop.breakJumps.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        mark(expr.name);
+        storeVariable(expr.name);
+        return null;
+    }
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.COMMA) {
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            return null;
+        }
+        compile(expr.right);
+
+        mark(expr.operator);
+        switch (expr.operator.type) {
+            case GREATER -> emitOp(OpCode.GREATER);
+            case GREATER_EQUAL -> emitOp(OpCode.GREATER_EQUAL);
+            case LESS -> emitOp(OpCode.LESS);
+            case LESS_EQUAL -> emitOp(OpCode.LESS_EQUAL);
+            case BANG_EQUAL -> emitOp(OpCode.NOT_EQUAL);
+            case EQUAL_EQUAL -> emitOp(OpCode.EQUAL);
+            case MINUS -> emitOp(OpCode.SUBTRACT);
+            case PLUS -> emitOp(OpCode.ADD);
+            case SLASH -> emitOp(OpCode.DIVIDE);
+            case STAR -> emitOp(OpCode.MULTIPLY);
+        }
+        return null;
+    }
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // Method calls skip materializing a bound method.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            int argCount = arguments(expr);
+            mark(get.name);
+            emitOp(OpCode.INVOKE);
+            emitShort(makeConstant(get.name.lexeme()));
+            emitByte(argCount);
+            return null;
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            mark(superExpr.keyword);
+            loadVariable(new Token(TokenType.THIS, "this", null,
+                    superExpr.keyword.line));
+            int argCount = arguments(expr);
+            loadVariable(superExpr.keyword);
+            mark(superExpr.method);
+            emitOp(OpCode.SUPER_INVOKE);
+            emitShort(makeConstant(superExpr.method.lexeme()));
+            emitByte(argCount);
+            return null;
+        }
+
+        compile(expr.callee);
+        int argCount = arguments(expr);
+        mark(expr.paren);
+        emitOp(OpCode.CALL);
+        emitByte(argCount);
+        return null;
+    }
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        mark(expr.name);
+        emitOp(OpCode.GET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme()));
+        return null;
+    }
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL);
+        } else if (expr.value instanceof Boolean) {
+            emitOp((Boolean) expr.value ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emitOp(OpCode.CONSTANT);
+            emitShort(makeConstant(expr.value));
+        }
+        return null;
+    }
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        mark(expr.operator);
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        mark(expr.name);
+        emitOp(OpCode.SET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme()));
+        return null;
+    }
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        mark(expr.keyword);
+        loadVariable(new Token(TokenType.THIS, "this", null,
+                expr.keyword.line));
+        loadVariable(expr.keyword);
+        mark(expr.method);
+        emitOp(OpCode.GET_SUPER);
+        emitShort(makeConstant(expr.method.lexeme()));
+        return null;
+    }
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        mark(expr.keyword);
+        loadVariable(expr.keyword);
+        return null;
+    }
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        mark(expr.operator);
+        switch (expr.operator.type) {
+            case BANG -> emitOp(OpCode.NOT);
+            case MINUS -> emitOp(OpCode.NEGATE);
+        }
+        return null;
+    }
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        // A condition that isn't a boolean makes the whole expression nil.
+        compile(expr.condition);
+        int nilJump = emitJump(OpCode.JUMP_IF_NOT_BOOL);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(expr.ifTruePart);
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        emitOp(OpCode.POP);
+        compile(expr.ifFalsePart);
+        patchJump(endJump);
+        patchJump(nilJump);
+        return null;
+    }
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        mark(expr.name);
+        loadVariable(expr.name);
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+    private int arguments(Expr.Call expr) {
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        return expr.arguments.size();
+    }
+    private void function(Stmt.Function declaration, FunctionType type) {
+        FunctionState function = new FunctionState(current,
+                new VmFunction(declaration.name.lexeme()), type);
+        function.function.arity = declaration.params.size();
+        current = function;
+
+        beginScope();
+        for (Token param : declaration.params) {
+            addLocal(param);
+        }
+        // Bytecode is generated for the whole script up front, so bodies
+        // left by the pre-parser are needed now.
+        if (declaration.body == null) Resolver.resolveBody(declaration);
+        if (declaration.body != null) {
+            for (Stmt statement : declaration.body) {
+                compile(statement);
+            }
+        }
+        emitReturn();
+
+        current = function.enclosing;
+        function.function.upvalueCount = function.upvalues.size();
+
+        emitOp(OpCode.CLOSURE);
+        emitShort(makeConstant(function.function));
+        for (Upvalue upvalue : function.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+    private void loadVariable(Token name) {
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitOp(OpCode.GET_LOCAL);
+            emitByte(slot);
+        } else if ((slot = resolveUpvalue(current, name)) != -1) {
+            emitOp(OpCode.GET_UPVALUE);
+            emitByte(slot);
+        } else {
+            // The token itself is the operand so an undefined-variable
+            // error reports the line of the reference.
+            emitOp(OpCode.GET_GLOBAL);
+            emitShort(makeConstant(name));
+        }
+    }
+    private void storeVariable(Token name) {
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitOp(OpCode.SET_LOCAL);
+            emitByte(slot);
+        } else if ((slot = resolveUpvalue(current, name)) != -1) {
+            emitOp(OpCode.SET_UPVALUE);
+            emitByte(slot);
+        } else {
+            emitOp(OpCode.SET_GLOBAL);
+            emitShort(makeConstant(name));
+        }
+    }
+    private int resolveLocal(FunctionState state, Token name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name.lexeme())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, name, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, name, upvalue, false);
+        }
+
+        return -1;
+    }
+    private int addUpvalue(FunctionState state, Token name,
+                           int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        if (state.upvalues.size() == MAX_SLOTS) {
+            Lox.error(name, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+    private void addLocal(Token name) {
+        if (current.locals.size() == MAX_SLOTS) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme(), current.scopeDepth));
+    }
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() &&
+                locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emitOp(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+    }
+    private void mark(Token token) {
+        lastToken = token;
+        line = token.line;
+    }
+    private int makeConstant(Object value) {
+        int constant = current.function.chunk.addConstant(value);
+        if (constant >= MAX_CONSTANTS) {
+            error("Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+    private void emitByte(int b) {
+        current.function.chunk.write(b, line);
+    }
+    private void emitOp(byte op) {
+        emitByte(op);
+    }
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(OpCode.GET_LOCAL);
+            emitByte(0);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+    }
+    private int emitJump(byte op) {
+        emitOp(op);
+        emitShort(0xffff);
+        return current.function.chunk.count - 2;
+    }
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        int jump = chunk.count - offset - 2;
+        if (jump > MAX_JUMP) {
+            error("Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP);
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > MAX_JUMP) error("Loop body too large.");
+        emitShort(offset);
+    }
+    private void error(String message) {
+        if (lastToken != null) {
+            Lox.error(lastToken, message);
+        } else {
+            Lox.error(line, message);
+        }
+    }
+}
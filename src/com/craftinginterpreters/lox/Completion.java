@@ -0,0 +1,9 @@
+package com.craftinginterpreters.lox;
+
+// How executing a statement ended. A return leaves its value in the
+// Interpreter, so unwinding a function allocates and throws nothing.
+enum Completion {
+    NORMAL,
+    BREAK,
+    RETURN
+}
@@ -1,57 +1,66 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Fills the global slots of names that haven't been defined yet.
+    private static final Object UNDEFINED = new Object();
+
+    // Every global name is given a slot once, the first time it's resolved
+    // or defined. The slots stored in a tree are only good for the globals
+    // they were given out by, so the resolver and the script cache ask the
+    // environment the tree will run in.
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    // Each global's value, at the slot its name was given. Locals are
+    // kept on the Interpreter's stack instead.
+    private Object[] slots = new Object[16];
     Environment() {
-        enclosing = null;
+        Arrays.fill(slots, UNDEFINED);
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot == null) {
+            slot = globalSlots.size();
+            globalSlots.put(name, slot);
+        }
+        return slot;
     }
+
     Object get(Token name) {
-        if (values.containsKey(name.lexeme) && values.get(name.lexeme)!=null) {
-            return values.get(name.lexeme);
+        return getGlobal(globalSlot(name.lexeme()), name);
+    }
+    Object getGlobal(int slot, Token name) {
+        if (slot < slots.length) {
+            Object value = slots[slot];
+            if (value != UNDEFINED && value != null) return value;
         }
-        if (enclosing != null && enclosing.get(name)!=null) return enclosing.get(name);
 
         throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+                "Undefined variable '" + name.lexeme() + "'.");
     }
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+        assignGlobal(globalSlot(name.lexeme()), name, value);
+    }
+    void assignGlobal(int slot, Token name, Object value) {
+        if (slot < slots.length && slots[slot] != UNDEFINED) {
+            slots[slot] = value;
             return;
         }
 
         throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+                "Undefined variable '" + name.lexeme() + "'.");
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
-    }
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
-    }
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
-    }
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            assert environment != null;
-            environment = environment.enclosing;
+        int slot = globalSlot(name);
+        if (slot >= slots.length) {
+            int length = slots.length;
+            slots = Arrays.copyOf(slots, Math.max(length * 2, slot + 1));
+            Arrays.fill(slots, length, slots.length, UNDEFINED);
         }
-
-        return environment;
+        slots[slot] = value;
     }
-}
\ No newline at end of file
+}
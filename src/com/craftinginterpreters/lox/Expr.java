@@ -31,6 +31,10 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    boolean local;
+    int slot;
+    int capture = -1;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -47,6 +51,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    int specialization;
   }
   static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -63,6 +69,8 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    boolean tail;
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -77,6 +85,8 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    PropertyCache cache;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -117,6 +127,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    int specialization;
   }
   static class Set extends Expr {
     Set(Expr object, Token name, Expr value) {
@@ -133,11 +145,14 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    PropertyCache cache;
   }
   static class Super extends Expr {
-    Super(Token keyword, Token method) {
+    Super(Token keyword, Token method, Expr.This receiver) {
       this.keyword = keyword;
       this.method = method;
+      this.receiver = receiver;
     }
 
     @Override
@@ -147,6 +162,11 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+    final Expr.This receiver;
+
+    int capture = -1;
+    LoxClass cachedClass;
+    LoxFunction cachedMethod;
   }
   static class This extends Expr {
     This(Token keyword) {
@@ -159,6 +179,10 @@ abstract class Expr {
     }
 
     final Token keyword;
+
+    boolean local;
+    int slot;
+    int capture = -1;
   }
   static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -173,6 +197,8 @@ abstract class Expr {
 
     final Token operator;
     final Expr right;
+
+    int specialization;
   }
   static class Ternary extends Expr {
     Ternary(Expr condition, Expr ifTruePart, Expr ifFalsePart) {
@@ -201,6 +227,10 @@ abstract class Expr {
     }
 
     final Token name;
+
+    boolean local;
+    int slot;
+    int capture = -1;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
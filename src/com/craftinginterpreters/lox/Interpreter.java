@@ -3,10 +3,20 @@ package com.craftinginterpreters.lox;
 import java.util.*;
 
 class Interpreter implements Expr.Visitor<Object>,
-        Stmt.Visitor<Void> {
+        Stmt.Visitor<Completion> {
     final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // The locals of every call in progress, one frame after another. The
+    // current frame starts at frame and ends at top, where the next call's
+    // frame will start. Top-level code has a frame of its own at 0.
+    private Object[] stack = new Object[256];
+    private int frame = 0;
+    private int top = 0;
+    // What the function being run captured. Top-level code has nothing.
+    private Object[] captures = null;
+    // Set by a return statement, which then completes with RETURN.
+    private Object returnValue = null;
+    // Handed back by a body that ends in a tail call. See TailCall.
+    final TailCall tailCall = new TailCall();
 
     Interpreter() {
         NativeFunctions nativeFunctions = new NativeFunctions(globals);
@@ -25,9 +35,6 @@ class Interpreter implements Expr.Visitor<Object>,
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
         }
-        catch (BreakException error){
-            Lox.BreakException(error);
-        }
         catch(Exception InputMismatchException){
             Lox.reportNativeFuncError("Incorrect input type");
         }
@@ -40,6 +47,30 @@ class Interpreter implements Expr.Visitor<Object>,
     public Object visitLogicalExpr(Expr.Logical expr) {
         Object left = evaluate(expr.left);
 
+        switch (expr.specialization) {
+            case Specialization.BOOLEAN_OR -> {
+                if (left instanceof Boolean) {
+                    return (Boolean)left ? left : evaluate(expr.right);
+                }
+            }
+            case Specialization.BOOLEAN_AND -> {
+                if (left instanceof Boolean) {
+                    return (Boolean)left ? evaluate(expr.right) : left;
+                }
+            }
+            case Specialization.UNINITIALIZED -> {
+                expr.specialization = Specialization.forLogical(
+                        expr.operator.type, left);
+                return logical(expr, left);
+            }
+            default -> {
+                return logical(expr, left);
+            }
+        }
+        expr.specialization = Specialization.GENERIC;
+        return logical(expr, left);
+    }
+    private Object logical(Expr.Logical expr, Object left) {
         if (expr.operator.type == TokenType.OR) {
             if (isTruthy(left)) return left;
         } else {
@@ -58,30 +89,33 @@ class Interpreter implements Expr.Visitor<Object>,
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        expr.cache.set((LoxInstance)object, expr.name, value);
         return value;
     }
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(
-                distance, "super");
-
-        LoxInstance object = (LoxInstance)environment.getAt(
-                distance - 1, "this");
+        LoxInstance object = (LoxInstance)evaluate(expr.receiver);
+        return findSuperMethod(expr, (LoxClass)captured(expr.capture))
+                .bind(object);
+    }
+    static LoxFunction findSuperMethod(Expr.Super expr, LoxClass superclass) {
+        if (expr.cachedClass == superclass) return expr.cachedMethod;
 
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        LoxFunction method = superclass.findMethod(expr.method.lexeme());
 
         if (method == null) {
             throw new RuntimeError(expr.method,
-                    "Undefined property '" + expr.method.lexeme + "'.");
+                    "Undefined property '" + expr.method.lexeme() + "'.");
         }
-
-        return method.bind(object);
+        expr.cachedClass = superclass;
+        expr.cachedMethod = method;
+        return method;
     }
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.local, expr.slot,
+                expr.capture);
     }
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
@@ -89,14 +123,46 @@ class Interpreter implements Expr.Visitor<Object>,
     }
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.specialization == Specialization.NUMBER_NEGATE) {
+            try {
+                return negate(expr);
+            } catch (UnexpectedResult result) {
+                return result.value;
+            }
+        }
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        switch (expr.specialization) {
+            case Specialization.BOOLEAN_NOT -> {
+                if (right instanceof Boolean) return !(boolean) right;
+            }
+            case Specialization.UNINITIALIZED -> {
+                expr.specialization = Specialization.forUnary(
+                        expr.operator.type, right);
+                return unary(expr.operator, right);
+            }
+            default -> {
+                return unary(expr.operator, right);
+            }
+        }
+        expr.specialization = Specialization.GENERIC;
+        return unary(expr.operator, right);
+    }
+    private double negate(Expr.Unary expr) {
+        try {
+            return -evaluateDouble(expr.right);
+        } catch (UnexpectedResult result) {
+            expr.specialization = Specialization.GENERIC;
+            return expectDouble(unary(expr.operator, result.value));
+        }
+    }
+    static Object unary(Token operator, Object right) {
+        switch (operator.type) {
             case BANG -> {
                 return !isTruthy(right);
             }
             case MINUS -> {
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return -(double) right;
             }
         }
@@ -106,39 +172,189 @@ class Interpreter implements Expr.Visitor<Object>,
     }
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
-    }
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+        return lookUpVariable(expr.name, expr.local, expr.slot,
+                expr.capture);
+    }
+    private Object lookUpVariable(Token name, boolean local, int slot,
+                                  int capture) {
+        if (capture != -1) {
+            return captured(capture);
+        } else if (local) {
+            Object value = stack[frame + slot];
+            if (value instanceof Cell) return ((Cell)value).value;
+            return value;
         } else {
-            return globals.get(name);
+            return globals.getGlobal(slot, name);
         }
     }
+    private Object captured(int capture) {
+        Object value = captures[capture];
+        if (value instanceof Cell) return ((Cell)value).value;
+        return value;
+    }
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.specialization) {
+            case Specialization.NUMBER_ADD, Specialization.NUMBER_SUBTRACT,
+                    Specialization.NUMBER_MULTIPLY,
+                    Specialization.NUMBER_DIVIDE -> {
+                // The only place an arithmetic tree's result gets boxed.
+                try {
+                    return arithmetic(expr);
+                } catch (UnexpectedResult result) {
+                    return result.value;
+                }
+            }
+            case Specialization.NUMBER_GREATER,
+                    Specialization.NUMBER_GREATER_EQUAL,
+                    Specialization.NUMBER_LESS,
+                    Specialization.NUMBER_LESS_EQUAL -> {
+                return comparison(expr);
+            }
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        switch (expr.specialization) {
+            case Specialization.STRING_ADD -> {
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+            }
+            case Specialization.UNINITIALIZED -> {
+                expr.specialization = Specialization.forBinary(
+                        expr.operator.type, left, right);
+                return binary(expr.operator, left, right);
+            }
+            default -> {
+                return binary(expr.operator, left, right);
+            }
+        }
+        // The operands no longer match what this node specialized on, so
+        // it takes the generic path from now on.
+        expr.specialization = Specialization.GENERIC;
+        return binary(expr.operator, left, right);
+    }
+    // Evaluates a subtree that is expected to produce a number without
+    // boxing it. Arithmetic and negation nodes specialized on numbers
+    // recurse into their operands the same way, so a whole numeric tree
+    // computes in doubles.
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            switch (binary.specialization) {
+                case Specialization.NUMBER_ADD, Specialization.NUMBER_SUBTRACT,
+                        Specialization.NUMBER_MULTIPLY,
+                        Specialization.NUMBER_DIVIDE -> {
+                    return arithmetic(binary);
+                }
+            }
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.specialization == Specialization.NUMBER_NEGATE) {
+                return negate(unary);
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping)expr).expression);
+        }
+        return expectDouble(evaluate(expr));
+    }
+    private double expectDouble(Object value) {
+        if (value instanceof Double) return (double) value;
+        throw new UnexpectedResult(value);
+    }
+    private double arithmetic(Expr.Binary expr) {
+        // Read up front: a recursive call can despecialize this same node
+        // while its operands are being evaluated.
+        int operation = expr.specialization;
+        double left;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (UnexpectedResult result) {
+            expr.specialization = Specialization.GENERIC;
+            return expectDouble(binary(expr.operator, result.value,
+                    evaluate(expr.right)));
+        }
+        double right;
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (UnexpectedResult result) {
+            expr.specialization = Specialization.GENERIC;
+            return expectDouble(binary(expr.operator, left, result.value));
+        }
+
+        switch (operation) {
+            case Specialization.NUMBER_ADD -> {
+                return left + right;
+            }
+            case Specialization.NUMBER_SUBTRACT -> {
+                return left - right;
+            }
+            case Specialization.NUMBER_MULTIPLY -> {
+                return left * right;
+            }
+            default -> {
+                if (right == 0) {
+                    throw new RuntimeError(expr.operator, "Can't divide by zero");
+                }
+                return left / right;
+            }
+        }
+    }
+    private Object comparison(Expr.Binary expr) {
+        // Read up front: a recursive call can despecialize this same node
+        // while its operands are being evaluated.
+        int operation = expr.specialization;
+        double left;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (UnexpectedResult result) {
+            expr.specialization = Specialization.GENERIC;
+            return binary(expr.operator, result.value, evaluate(expr.right));
+        }
+        double right;
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (UnexpectedResult result) {
+            expr.specialization = Specialization.GENERIC;
+            return binary(expr.operator, left, result.value);
+        }
+
+        switch (operation) {
+            case Specialization.NUMBER_GREATER -> {
+                return left > right;
+            }
+            case Specialization.NUMBER_GREATER_EQUAL -> {
+                return left >= right;
+            }
+            case Specialization.NUMBER_LESS -> {
+                return left < right;
+            }
+            default -> {
+                return left <= right;
+            }
+        }
+    }
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case COMMA -> {
                 return right;
             }
             case GREATER -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left > (double) right;
             }
             case GREATER_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left >= (double) right;
             }
             case LESS -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left < (double) right;
             }
             case LESS_EQUAL -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left <= (double) right;
             }
             case BANG_EQUAL -> {
@@ -148,7 +364,7 @@ class Interpreter implements Expr.Visitor<Object>,
                 return isEqual(left, right);
             }
             case MINUS -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left - (double) right;
             }
             case PLUS -> {
@@ -170,31 +386,67 @@ class Interpreter implements Expr.Visitor<Object>,
                 if(left instanceof Boolean && right instanceof String){
                     return String.valueOf((Boolean) left) + (String) right;
                 }
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                         "Operands must be two numbers or two strings.");
             }
             case SLASH -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 if ((double) right == 0) {
-                    throw new RuntimeError(expr.operator, "Can't divide by zero");
+                    throw new RuntimeError(operator, "Can't divide by zero");
                 }
                 return (double) left / (double) right;
             }
             case STAR -> {
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left * (double) right;
             }
         }
         // Unreachable.
         return null;
     }
+    // A tail call to a Lox function isn't made here but returned as the
+    // TailCall for the trampoline, after the callee and arguments have
+    // been evaluated and checked as for any other call.
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        // obj.method() and super.method() hand the receiver straight to the
+        // method rather than creating a bound copy of it for one call.
+        Object callee = null;
+        LoxFunction method = null;
+        LoxInstance receiver = null;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof LoxInstance)) {
+                throw new RuntimeError(get.name,
+                        "Only instances have properties.");
+            }
+            receiver = (LoxInstance)object;
+            if (get.cache == null) get.cache = new PropertyCache();
+            method = get.cache.findMethod(receiver, get.name);
+            if (method == null) callee = get.cache.get(receiver, get.name);
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            receiver = (LoxInstance)evaluate(superExpr.receiver);
+            method = findSuperMethod(superExpr,
+                    (LoxClass)captured(superExpr.capture));
+        } else {
+            callee = evaluate(expr.callee);
+        }
+
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
+        if (method != null) {
+            if (arguments.size() != method.arity()) {
+                throw new RuntimeError(expr.paren, "Expected " +
+                        method.arity() + " arguments but got " +
+                        arguments.size() + ".");
+            }
+            if (expr.tail) return tailCall.set(method, receiver, arguments);
+            return method.call(this, receiver, arguments);
+        }
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren,
                     "Can only call functions and classes.");
@@ -206,13 +458,23 @@ class Interpreter implements Expr.Visitor<Object>,
                     function.arity() + " arguments but got " +
                     arguments.size() + ".");
         }
+        if (expr.tail && function instanceof LoxFunction) {
+            return tailCall.set((LoxFunction)function, null, arguments);
+        }
+        if (Profiler.enabled && !(function instanceof LoxFunction)) {
+            return Profiler.call(function, expr.callee, this, arguments);
+        }
+        if (function instanceof LoxFunction) {
+            return ((LoxFunction)function).call(this, null, arguments);
+        }
         return function.call(this, arguments);
     }
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            if (expr.cache == null) expr.cache = new PropertyCache();
+            return expr.cache.get((LoxInstance) object, expr.name);
         }
 
         throw new RuntimeError(expr.name,
@@ -227,29 +489,29 @@ class Interpreter implements Expr.Visitor<Object>,
         // For now.
         return null;
     }
-    private void checkNumberOperand(Token operator, Object operand) {
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
-    private void checkNumberOperands(Token operator,
-                                     Object left, Object right) {
+    private static void checkNumberOperands(Token operator,
+                                            Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
         return a.equals(b);
     }
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -265,19 +527,56 @@ class Interpreter implements Expr.Visitor<Object>,
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    // Defining a local starts a fresh variable, even if a closure left a
+    // Cell in its slot. Assigning one writes through the Cell.
+    private void define(int slot, Token name, Object value) {
+        if (slot == -1) {
+            globals.define(name.lexeme(), value);
+        } else {
+            stack[frame + slot] = value;
+        }
+    }
+    private void assign(int slot, Token name, Object value) {
+        if (slot == -1) {
+            globals.assign(name, value);
+        } else if (stack[frame + slot] instanceof Cell) {
+            ((Cell)stack[frame + slot]).value = value;
+        } else {
+            stack[frame + slot] = value;
+        }
     }
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        int enclosingTop = top;
+        reserve(stmt.frameSize);
+        try {
+            return executeBlock(stmt.statements);
+        } finally {
+            release(stmt.firstSlot, enclosingTop);
+        }
+    }
+    // Top-level code has no function to size its frame, so blocks and
+    // classes make room for the locals they need as they're run. Inside a
+    // function, its frame already has room.
+    private void reserve(int frameSize) {
+        if (frame + frameSize <= top) return;
+        top = frame + frameSize;
+        if (top > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(top, stack.length * 2));
+        }
+    }
+    // Ends a scope whose locals start at firstSlot. Every slot from there
+    // up is dead once it ends, and nothing they held should outlive it.
+    // At top level, the room reserve() made is given back too.
+    private void release(int firstSlot, int enclosingTop) {
+        Arrays.fill(stack, frame + firstSlot, top, null);
+        top = enclosingTop;
     }
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -287,113 +586,184 @@ class Interpreter implements Expr.Visitor<Object>,
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        define(stmt.slot, stmt.name, null);
 
+        int enclosingTop = top;
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            reserve(stmt.superclassSlot + 1);
+            stack[frame + stmt.superclassSlot] = superclass;
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment,
-                    method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, capture(method),
+                    stmt.name.lexeme(), method.name.lexeme().equals("init"));
+            methods.put(method.name.lexeme(), function);
         }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme,
+        LoxClass klass = new LoxClass(stmt.name.lexeme(),
                 (LoxClass)superclass, methods);
 
-        if (superclass != null) {
-            environment = environment.enclosing;
-        }
+        // Only the methods needed it, and they've captured it.
+        if (superclass != null) release(stmt.superclassSlot, enclosingTop);
 
-        environment.assign(stmt.name, klass);
-        return null;
+        assign(stmt.slot, stmt.name, klass);
+        return Completion.NORMAL;
     }
-    void executeBlock(List<Stmt> statements,
-                      Environment environment) {
-        Environment previous = this.environment;
-        try {
-            this.environment = environment;
+    // Collects what a closure captures as it's created.
+    private Object[] capture(Stmt.Function function) {
+        Object[] values = new Object[function.captures.size()];
+        for (int i = 0; i < values.length; i++) {
+            Capture capture = function.captures.get(i);
+            if (!capture.local) {
+                values[i] = captures[capture.index];
+                continue;
+            }
 
-            for (Stmt statement : statements) {
-                execute(statement);
+            int slot = frame + capture.index;
+            if (capture.cell && !(stack[slot] instanceof Cell)) {
+                stack[slot] = new Cell(stack[slot]);
             }
+            values[i] = stack[slot];
+        }
+        return values;
+    }
+    private Completion executeBlock(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            Completion completion = execute(statement);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+    // Runs a function's body in a new frame, which starts with the
+    // receiver of a method and then the arguments. Returns the value the
+    // body returned, or nil if it ran off the end.
+    Object executeBody(Stmt.Function function, Object[] captures,
+                       boolean isMethod, LoxInstance receiver,
+                       List<Object> arguments) {
+        int enclosingFrame = frame;
+        Object[] enclosingCaptures = this.captures;
+        frame = top;
+        reserve(function.frameSize);
+        int slot = frame;
+        if (isMethod) stack[slot++] = receiver;
+        for (Object argument : arguments) {
+            stack[slot++] = argument;
+        }
+        this.captures = captures;
+
+        try {
+            // The body is run here rather than by executeBlock() so that
+            // each level of recursion costs one Java frame fewer.
+            Completion completion = Completion.NORMAL;
+            for (Stmt statement : function.body) {
+                completion = execute(statement);
+                if (completion != Completion.NORMAL) break;
+            }
+            if (completion != Completion.RETURN) return null;
         } finally {
-            this.environment = previous;
+            // Nothing the frame held should outlive the call.
+            Arrays.fill(stack, frame, top, null);
+            top = frame;
+            frame = enclosingFrame;
+            this.captures = enclosingCaptures;
         }
+
+        Object value = returnValue;
+        returnValue = null;
+        return value;
     }
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        // Like a class, it's declared before its closure is created, so a
+        // closure that captures it gets a fresh cell to find it in later.
+        define(stmt.slot, stmt.name, null);
+        LoxFunction function = new LoxFunction(stmt, capture(stmt),
+                null, false);
+        assign(stmt.slot, stmt.name, function);
+        return Completion.NORMAL;
     }
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.slot, stmt.name, value);
+        return Completion.NORMAL;
     }
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            try {
-                execute(stmt.body);
-            }
-            catch(Exception BreakException){
-                break;
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+        }
+        return Completion.NORMAL;
+    }
+    @Override
+    public Completion visitForStmt(Stmt.For stmt) {
+        int enclosingTop = top;
+        reserve(stmt.frameSize);
+        try {
+            if (stmt.initializer != null) execute(stmt.initializer);
+            while (isTruthy(evaluate(stmt.condition))) {
+                Completion completion = execute(stmt.body);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+                if (stmt.increment != null) evaluate(stmt.increment);
             }
+            return Completion.NORMAL;
+        } finally {
+            release(stmt.firstSlot, enclosingTop);
         }
-        return null;
     }
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.capture != -1) {
+            // Anything captured and assigned is captured as a Cell.
+            ((Cell)captures[expr.capture]).value = value;
+        } else if (expr.local) {
+            assign(expr.slot, expr.name, value);
         } else {
-            globals.assign(expr.name, value);
+            globals.assignGlobal(expr.slot, expr.name, value);
         }
 
         return value;
     }
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt){
-        throw new BreakException(stmt.name, "Break must be within a while statement");
+    public Completion visitBreakStmt(Stmt.Break stmt){
+        return Completion.BREAK;
     }
 }
\ No newline at end of file
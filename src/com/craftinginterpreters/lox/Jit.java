@@ -0,0 +1,125 @@
+package com.craftinginterpreters.lox;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+// Compiles hot functions into JVM classes so HotSpot can optimize Lox
+// code like any other Java code. Each function is translated to Java
+// source, compiled in memory with the system compiler and loaded as a
+// hidden class. Anything that can't be compiled keeps being interpreted.
+final class Jit {
+    // Calls a function takes before it gets compiled.
+    static final int THRESHOLD = Integer.getInteger("lox.jit.threshold",
+            1000);
+    static boolean enabled = false;
+
+    interface Code {
+        Object run(Interpreter interpreter, Object[] captures,
+                   LoxInstance receiver, List<Object> arguments);
+    }
+
+    private static final JavaCompiler javac =
+            ToolProvider.getSystemJavaCompiler();
+    // javac runs on a core of its own. With just one, compiling takes
+    // that core from the interpreter for far longer than the compiled
+    // code can win back, so functions stay interpreted.
+    private static final boolean available = javac != null &&
+            Runtime.getRuntime().availableProcessors() > 1;
+    // Compiling takes a while, so it happens off the interpreter's thread
+    // and the function stays interpreted until its code is ready.
+    // test/run.sh sets lox.jit.threshold to 1 and lox.jit.sync so the
+    // scripts there run compiled code as soon as they call a function.
+    private static final Executor queue = Boolean.getBoolean("lox.jit.sync")
+            ? Runnable::run
+            : Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "lox-jit");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private Jit() {}
+
+    static void countCall(Stmt.Function declaration, boolean isMethod) {
+        if (declaration.calls >= THRESHOLD) return;
+        if (++declaration.calls < THRESHOLD || !available) return;
+
+        queue.execute(() -> {
+            declaration.compiled = compile(declaration, isMethod);
+        });
+    }
+
+    private static Code compile(Stmt.Function declaration, boolean isMethod) {
+        JitTranslator translator = new JitTranslator();
+        String source = translator.translate(declaration, isMethod);
+        if (source == null) return null;
+
+        byte[] bytes = javac(translator.className(), source);
+        if (bytes == null) return null;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(bytes,
+                            translator.constants(), true);
+            return (Code)lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (Throwable error) {
+            return null;
+        }
+    }
+
+    // Called from the static initializer of every compiled class.
+    static Object[] constants(MethodHandles.Lookup lookup) {
+        try {
+            return MethodHandles.classData(lookup,
+                    ConstantDescs.DEFAULT_NAME, Object[].class);
+        } catch (IllegalAccessException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static byte[] javac(String className, String source) {
+        JavaFileObject unit = new SimpleJavaFileObject(
+                URI.create("string:///" + className + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreErrors) {
+                return source;
+            }
+        };
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JavaFileManager files = new ForwardingJavaFileManager<>(
+                javac.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location,
+                    String name, JavaFileObject.Kind kind,
+                    FileObject sibling) {
+                return new SimpleJavaFileObject(
+                        URI.create("bytes:///" + name), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return output;
+                    }
+                };
+            }
+        };
+
+        List<String> options = List.of("-classpath",
+                System.getProperty("java.class.path"), "-proc:none");
+        // javac reports its own failures, such as running out of stack on
+        // a deeply nested expression, but the function just stays
+        // interpreted.
+        boolean compiled = javac.getTask(Writer.nullWriter(), files,
+                new DiagnosticCollector<>(), options, null,
+                List.of(unit)).call();
+        return compiled ? output.toByteArray() : null;
+    }
+}
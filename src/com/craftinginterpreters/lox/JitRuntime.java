@@ -0,0 +1,171 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// The operations compiled code can't express as plain Java. Each one
+// does what the matching Interpreter visit method does once its operands
+// are evaluated, and shares the caches stored on the node with it.
+final class JitRuntime {
+    private JitRuntime() {}
+
+    static Object add(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        return Interpreter.binary(operator, left, right);
+    }
+    static double subtract(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left - (double)right;
+        }
+        return (double)Interpreter.binary(operator, left, right);
+    }
+    static double multiply(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left * (double)right;
+        }
+        return (double)Interpreter.binary(operator, left, right);
+    }
+    static double divide(Token operator, double left, double right) {
+        if (right == 0) {
+            throw new RuntimeError(operator, "Can't divide by zero");
+        }
+        return left / right;
+    }
+    static double divide(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return divide(operator, (double)left, (double)right);
+        }
+        return (double)Interpreter.binary(operator, left, right);
+    }
+    static boolean greater(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left > (double)right;
+        }
+        return (boolean)Interpreter.binary(operator, left, right);
+    }
+    static boolean greaterEqual(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left >= (double)right;
+        }
+        return (boolean)Interpreter.binary(operator, left, right);
+    }
+    static boolean less(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left < (double)right;
+        }
+        return (boolean)Interpreter.binary(operator, left, right);
+    }
+    static boolean lessEqual(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left <= (double)right;
+        }
+        return (boolean)Interpreter.binary(operator, left, right);
+    }
+    static double negate(Token operator, Object right) {
+        if (right instanceof Double) return -(double)right;
+        return (double)Interpreter.unary(operator, right);
+    }
+
+    // Lets any expression be used as a statement.
+    static void discard(Object value) {
+    }
+
+    static Object captured(Object[] captures, int capture) {
+        Object value = captures[capture];
+        if (value instanceof Cell) return ((Cell)value).value;
+        return value;
+    }
+    static Object assignCaptured(Object[] captures, int capture,
+                                 Object value) {
+        ((Cell)captures[capture]).value = value;
+        return value;
+    }
+    static Object assignGlobal(Interpreter interpreter, int slot,
+                               Token name, Object value) {
+        interpreter.globals.assignGlobal(slot, name, value);
+        return value;
+    }
+
+    static LoxInstance propertiesOf(Token name, Object object) {
+        if (object instanceof LoxInstance) return (LoxInstance)object;
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+    static LoxInstance fieldsOf(Token name, Object object) {
+        if (object instanceof LoxInstance) return (LoxInstance)object;
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+    static Object get(Expr.Get expr, LoxInstance object) {
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        return expr.cache.get(object, expr.name);
+    }
+    static Object set(Expr.Set expr, LoxInstance object, Object value) {
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        expr.cache.set(object, expr.name, value);
+        return value;
+    }
+    static LoxFunction findMethod(Expr.Get expr, LoxInstance object) {
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        return expr.cache.findMethod(object, expr.name);
+    }
+
+    static Object call(Interpreter interpreter, Expr.Call expr,
+                       Object callee, Object... arguments) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(expr.paren,
+                    "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        checkArity(expr, function.arity(), arguments.length);
+        if (Profiler.enabled && !(function instanceof LoxFunction)) {
+            return Profiler.call(function, expr.callee, interpreter,
+                    Arrays.asList(arguments));
+        }
+        if (function instanceof LoxFunction) {
+            return ((LoxFunction)function).call(interpreter, null,
+                    Arrays.asList(arguments));
+        }
+        return function.call(interpreter, Arrays.asList(arguments));
+    }
+    // Calls method with receiver when the property turned out to be one,
+    // and otherwise calls the field's value.
+    static Object invoke(Interpreter interpreter, Expr.Call expr,
+                         LoxInstance receiver, LoxFunction method,
+                         Object field, Object... arguments) {
+        if (method == null) {
+            return call(interpreter, expr, field, arguments);
+        }
+        checkArity(expr, method.arity(), arguments.length);
+        return method.call(interpreter, receiver, Arrays.asList(arguments));
+    }
+    // Tail calls check the callee as call and invoke do, but hand a Lox
+    // function back as the interpreter's TailCall for the trampoline.
+    static Object tailCall(Interpreter interpreter, Expr.Call expr,
+                           Object callee, Object... arguments) {
+        if (!(callee instanceof LoxFunction)) {
+            return call(interpreter, expr, callee, arguments);
+        }
+
+        LoxFunction function = (LoxFunction)callee;
+        checkArity(expr, function.arity(), arguments.length);
+        return interpreter.tailCall.set(function, null,
+                Arrays.asList(arguments));
+    }
+    static Object tailInvoke(Interpreter interpreter, Expr.Call expr,
+                             LoxInstance receiver, LoxFunction method,
+                             Object field, Object... arguments) {
+        if (method == null) {
+            return tailCall(interpreter, expr, field, arguments);
+        }
+        checkArity(expr, method.arity(), arguments.length);
+        return interpreter.tailCall.set(method, receiver,
+                Arrays.asList(arguments));
+    }
+    private static void checkArity(Expr.Call expr, int arity, int count) {
+        if (count != arity) {
+            throw new RuntimeError(expr.paren, "Expected " +
+                    arity + " arguments but got " + count + ".");
+        }
+    }
+}
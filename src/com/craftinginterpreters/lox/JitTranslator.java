@@ -0,0 +1,539 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Translates a function into the source of a Java class implementing
+// Jit.Code. Its locals become Java locals, which is only sound when no
+// closure can capture them, so functions that declare functions or
+// classes of their own are left to the interpreter.
+class JitTranslator implements Expr.Visitor<JitTranslator.Value>,
+        Stmt.Visitor<Boolean> {
+    private enum Type {
+        OBJECT,
+        DOUBLE,
+        BOOLEAN
+    }
+
+    // A Java expression along with its static type. Numbers and booleans
+    // stay unboxed until something needs them as an Object.
+    static final class Value {
+        final String code;
+        final Type type;
+
+        Value(String code, Type type) {
+            this.code = code;
+            this.type = type;
+        }
+    }
+
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private String className;
+    private final StringBuilder body = new StringBuilder();
+    private final List<String> temporaries = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, String> constantNames = new IdentityHashMap<>();
+    private int nameCount = 0;
+    private int loopDepth = 0;
+    private int indent = 2;
+
+    // Returns null if the function can't be compiled.
+    String translate(Stmt.Function function, boolean isMethod) {
+        className = "LoxFunction$" + function.name.lexeme();
+        try {
+            // Each slot of the function's frame is a Java local. Anything
+            // from further out is in the captures.
+            for (int slot = 0; slot < function.frameSize; slot++) {
+                line("Object " + local(slot) + " = null;");
+            }
+            int first = 0;
+            if (isMethod) {
+                line(local(0) + " = receiver;");
+                first = 1;
+            }
+            for (int i = 0; i < function.params.size(); i++) {
+                line(local(first + i) + " = arguments.get(" + i + ");");
+            }
+            if (statements(function.body)) line("return null;");
+        } catch (Unsupported unsupported) {
+            return null;
+        }
+
+        StringBuilder source = new StringBuilder();
+        source.append("package com.craftinginterpreters.lox;\n\n");
+        source.append("import java.lang.invoke.MethodHandles;\n");
+        source.append("import java.util.List;\n\n");
+        source.append("final class ").append(className)
+                .append(" implements Jit.Code {\n");
+        source.append("    private static final Object[] constants =\n");
+        source.append("            Jit.constants(MethodHandles.lookup());\n");
+        for (int i = 0; i < constants.size(); i++) {
+            String type = constants.get(i).getClass().getCanonicalName();
+            source.append("    private static final ").append(type)
+                    .append(" ").append(constantNames.get(constants.get(i)))
+                    .append(" = (").append(type).append(")constants[")
+                    .append(i).append("];\n");
+        }
+        source.append("\n    @Override\n");
+        source.append("    public Object run(Interpreter interpreter,");
+        source.append(" Object[] captures,\n");
+        source.append("            LoxInstance receiver,");
+        source.append(" List<Object> arguments) {\n");
+        for (String temporary : temporaries) {
+            source.append("        ").append(temporary).append(" = null;\n");
+        }
+        source.append(body);
+        source.append("    }\n}\n");
+        return source.toString();
+    }
+
+    String className() {
+        return className;
+    }
+
+    Object[] constants() {
+        return constants.toArray();
+    }
+
+    // Returns whether the statements can complete normally. Java rejects
+    // unreachable code, so nothing after a return or break is emitted.
+    private boolean statements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (!statement.accept(this)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        line("{");
+        indent++;
+        boolean completes = statements(stmt.statements);
+        indent--;
+        line("}");
+        return completes;
+    }
+
+    @Override
+    public Boolean visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        line("JitRuntime.discard(" + box(stmt.expression.accept(this)) +
+                ");");
+        return true;
+    }
+
+    @Override
+    public Boolean visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Boolean visitIfStmt(Stmt.If stmt) {
+        line("if (" + truthy(stmt.condition.accept(this)) + ") {");
+        boolean completes = nested(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            line("}");
+            return true;
+        }
+        line("} else {");
+        completes |= nested(stmt.elseBranch);
+        line("}");
+        return completes;
+    }
+
+    @Override
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
+        line("System.out.println(Interpreter.stringify(" +
+                box(stmt.expression.accept(this)) + "));");
+        return true;
+    }
+
+    @Override
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            line("return null;");
+        } else {
+            line("return " + box(stmt.value.accept(this)) + ";");
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitVarStmt(Stmt.Var stmt) {
+        String value = "null";
+        if (stmt.initializer != null) {
+            value = box(stmt.initializer.accept(this));
+        }
+        line(local(stmt.slot) + " = " + value + ";");
+        return true;
+    }
+
+    @Override
+    public Boolean visitWhileStmt(Stmt.While stmt) {
+        // Testing the condition inside the loop keeps a constant condition
+        // from making the code after the loop unreachable to javac.
+        line("while (true) {");
+        indent++;
+        line("if (!" + truthy(stmt.condition.accept(this)) + ") break;");
+        loopDepth++;
+        stmt.body.accept(this);
+        loopDepth--;
+        indent--;
+        line("}");
+        return true;
+    }
+
+    @Override
+    public Boolean visitForStmt(Stmt.For stmt) {
+        line("{");
+        indent++;
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+        line("while (true) {");
+        indent++;
+        line("if (!" + truthy(stmt.condition.accept(this)) + ") break;");
+        loopDepth++;
+        boolean completes = stmt.body.accept(this);
+        loopDepth--;
+        // javac rejects the increment as unreachable after a body that
+        // always breaks or returns.
+        if (completes && stmt.increment != null) {
+            line("JitRuntime.discard(" + box(stmt.increment.accept(this)) +
+                    ");");
+        }
+        indent--;
+        line("}");
+        indent--;
+        line("}");
+        return true;
+    }
+
+    @Override
+    public Boolean visitBreakStmt(Stmt.Break stmt) {
+        if (loopDepth == 0) throw new Unsupported();
+        line("break;");
+        return false;
+    }
+
+    @Override
+    public Value visitAssignExpr(Expr.Assign expr) {
+        String value = box(expr.value.accept(this));
+        if (expr.capture != -1) {
+            return object("JitRuntime.assignCaptured(captures, " +
+                    expr.capture + ", " + value + ")");
+        }
+        if (!expr.local) {
+            return object("JitRuntime.assignGlobal(interpreter, " +
+                    expr.slot + ", " + constant(expr.name) + ", " + value +
+                    ")");
+        }
+        return object("(" + local(expr.slot) + " = " + value + ")");
+    }
+
+    @Override
+    public Value visitBinaryExpr(Expr.Binary expr) {
+        Value left = expr.left.accept(this);
+        Value right = expr.right.accept(this);
+        boolean numbers = left.type == Type.DOUBLE &&
+                right.type == Type.DOUBLE;
+        String operator = constant(expr.operator);
+
+        switch (expr.operator.type) {
+            case PLUS -> {
+                if (numbers) return number(infix(left, "+", right));
+                return object(call("JitRuntime.add", operator, left, right));
+            }
+            case MINUS -> {
+                if (numbers) return number(infix(left, "-", right));
+                return number(call("JitRuntime.subtract", operator,
+                        left, right));
+            }
+            case STAR -> {
+                if (numbers) return number(infix(left, "*", right));
+                return number(call("JitRuntime.multiply", operator,
+                        left, right));
+            }
+            case SLASH -> {
+                if (numbers) {
+                    return number("JitRuntime.divide(" + operator + ", " +
+                            left.code + ", " + right.code + ")");
+                }
+                return number(call("JitRuntime.divide", operator,
+                        left, right));
+            }
+            case GREATER -> {
+                if (numbers) return bool(infix(left, ">", right));
+                return bool(call("JitRuntime.greater", operator,
+                        left, right));
+            }
+            case GREATER_EQUAL -> {
+                if (numbers) return bool(infix(left, ">=", right));
+                return bool(call("JitRuntime.greaterEqual", operator,
+                        left, right));
+            }
+            case LESS -> {
+                if (numbers) return bool(infix(left, "<", right));
+                return bool(call("JitRuntime.less", operator, left, right));
+            }
+            case LESS_EQUAL -> {
+                if (numbers) return bool(infix(left, "<=", right));
+                return bool(call("JitRuntime.lessEqual", operator,
+                        left, right));
+            }
+            case EQUAL_EQUAL -> {
+                return bool("Interpreter.isEqual(" + box(left) + ", " +
+                        box(right) + ")");
+            }
+            case BANG_EQUAL -> {
+                return bool("(!Interpreter.isEqual(" + box(left) + ", " +
+                        box(right) + "))");
+            }
+            default -> {
+                return object(call("Interpreter.binary", operator,
+                        left, right));
+            }
+        }
+    }
+
+    @Override
+    public Value visitCallExpr(Expr.Call expr) {
+        return call(expr, expr.tail);
+    }
+
+    // A tail call hands the callee to the trampoline in LoxFunction.call
+    // instead of calling it, as the interpreter does.
+    private Value call(Expr.Call expr, boolean tail) {
+        String call = constant(expr);
+        String invoke = tail ? "JitRuntime.tailInvoke(" : "JitRuntime.invoke(";
+        if (expr.callee instanceof Expr.Get) {
+            // The method is looked up before the arguments are evaluated,
+            // as the interpreter does.
+            Expr.Get get = (Expr.Get)expr.callee;
+            String object = box(get.object.accept(this));
+            String receiver = temporary("LoxInstance", "receiver");
+            String method = temporary("LoxFunction", "method");
+            return object(invoke + "interpreter, " + call + ", " +
+                    receiver + " = JitRuntime.propertiesOf(" +
+                    constant(get.name) + ", " + object + "), " +
+                    method + " = JitRuntime.findMethod(" + constant(get) +
+                    ", " + receiver + "), " + method +
+                    " == null ? JitRuntime.get(" + constant(get) + ", " +
+                    receiver + ") : null, " + arguments(expr) + ")");
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            return object(invoke + "interpreter, " + call + ", " +
+                    "(LoxInstance)" + superExpr.receiver.accept(this).code +
+                    ", " +
+                    findSuperMethod(superExpr) + ", null, " +
+                    arguments(expr) + ")");
+        }
+
+        String callee = box(expr.callee.accept(this));
+        return object((tail ? "JitRuntime.tailCall(" : "JitRuntime.call(") +
+                "interpreter, " + call + ", " + callee + ", " +
+                arguments(expr) + ")");
+    }
+
+    @Override
+    public Value visitGetExpr(Expr.Get expr) {
+        String object = box(expr.object.accept(this));
+        return object("JitRuntime.get(" + constant(expr) + ", " +
+                "JitRuntime.propertiesOf(" + constant(expr.name) + ", " +
+                object + "))");
+    }
+
+    @Override
+    public Value visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Value visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) return object("null");
+        if (expr.value instanceof Double) {
+            return number(expr.value.toString());
+        }
+        if (expr.value instanceof Boolean) {
+            return bool(expr.value.toString());
+        }
+        return object(constant(expr.value));
+    }
+
+    @Override
+    public Value visitLogicalExpr(Expr.Logical expr) {
+        Value left = expr.left.accept(this);
+        Value right = expr.right.accept(this);
+        boolean or = expr.operator.type == TokenType.OR;
+        if (left.type == Type.BOOLEAN && right.type == Type.BOOLEAN) {
+            return bool(infix(left, or ? "||" : "&&", right));
+        }
+
+        // The result is whichever operand decided it, not a boolean.
+        String value = temporary("Object", "value");
+        return object("(" + (or ? "" : "!") + "Interpreter.isTruthy(" +
+                value + " = " + box(left) + ") ? " + value + " : " +
+                box(right) + ")");
+    }
+
+    @Override
+    public Value visitSetExpr(Expr.Set expr) {
+        String object = box(expr.object.accept(this));
+        String value = box(expr.value.accept(this));
+        return object("JitRuntime.set(" + constant(expr) + ", " +
+                "JitRuntime.fieldsOf(" + constant(expr.name) + ", " +
+                object + "), " + value + ")");
+    }
+
+    @Override
+    public Value visitSuperExpr(Expr.Super expr) {
+        return object(findSuperMethod(expr) + ".bind((LoxInstance)" +
+                expr.receiver.accept(this).code + ")");
+    }
+
+    @Override
+    public Value visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.local, expr.slot, expr.capture);
+    }
+
+    @Override
+    public Value visitUnaryExpr(Expr.Unary expr) {
+        Value right = expr.right.accept(this);
+        if (expr.operator.type == TokenType.BANG) {
+            return bool("(!" + truthy(right) + ")");
+        }
+
+        if (right.type == Type.DOUBLE) return number("(-" + right.code + ")");
+        return number("JitRuntime.negate(" + constant(expr.operator) +
+                ", " + box(right) + ")");
+    }
+
+    @Override
+    public Value visitTernaryExpr(Expr.Ternary expr) {
+        Value condition = expr.condition.accept(this);
+        String ifTrue = box(expr.ifTruePart.accept(this));
+        String ifFalse = box(expr.ifFalsePart.accept(this));
+        if (condition.type == Type.BOOLEAN) {
+            return object("(" + condition.code + " ? " + ifTrue + " : " +
+                    ifFalse + ")");
+        }
+
+        // A condition that isn't a boolean makes the whole expression nil.
+        String value = temporary("Object", "condition");
+        return object("((" + value + " = " + box(condition) +
+                ") instanceof Boolean ? ((Boolean)" + value + " ? " +
+                ifTrue + " : " + ifFalse + ") : null)");
+    }
+
+    @Override
+    public Value visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.local, expr.slot, expr.capture);
+    }
+
+    private Value variable(Token name, boolean local, int slot,
+                           int capture) {
+        if (capture != -1) {
+            return object("JitRuntime.captured(captures, " + capture + ")");
+        }
+        if (!local) {
+            return object("interpreter.globals.getGlobal(" + slot + ", " +
+                    constant(name) + ")");
+        }
+        return object(local(slot));
+    }
+
+    private String findSuperMethod(Expr.Super expr) {
+        return "Interpreter.findSuperMethod(" + constant(expr) +
+                ", (LoxClass)JitRuntime.captured(captures, " + expr.capture +
+                "))";
+    }
+
+    private String arguments(Expr.Call expr) {
+        StringBuilder arguments = new StringBuilder("new Object[] {");
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            if (i > 0) arguments.append(", ");
+            arguments.append(box(expr.arguments.get(i).accept(this)));
+        }
+        return arguments.append("}").toString();
+    }
+
+    private String local(int slot) {
+        return "l" + slot;
+    }
+
+    private String temporary(String type, String prefix) {
+        String name = name(prefix);
+        temporaries.add(type + " " + name);
+        return name;
+    }
+
+    private String name(String prefix) {
+        return prefix + nameCount++;
+    }
+
+    private String constant(Object value) {
+        String name = constantNames.get(value);
+        if (name == null) {
+            name = "c" + constants.size();
+            constants.add(value);
+            constantNames.put(value, name);
+        }
+        return name;
+    }
+
+    // Emits a branch or loop body inside braces the caller has opened.
+    private boolean nested(Stmt stmt) {
+        indent++;
+        boolean completes = stmt.accept(this);
+        indent--;
+        return completes;
+    }
+
+    private void line(String code) {
+        body.append("    ".repeat(indent)).append(code).append('\n');
+    }
+
+    private static String call(String method, String operator,
+                               Value left, Value right) {
+        return method + "(" + operator + ", " + box(left) + ", " +
+                box(right) + ")";
+    }
+
+    private static String infix(Value left, String operator, Value right) {
+        return "(" + left.code + " " + operator + " " + right.code + ")";
+    }
+
+    private static String box(Value value) {
+        if (value.type == Type.OBJECT) return value.code;
+        return "((Object)" + value.code + ")";
+    }
+
+    private static String truthy(Value value) {
+        if (value.type == Type.BOOLEAN) return "(" + value.code + ")";
+        return "Interpreter.isTruthy(" + box(value) + ")";
+    }
+
+    private static Value object(String code) {
+        return new Value(code, Type.OBJECT);
+    }
+
+    private static Value number(String code) {
+        return new Value(code, Type.DOUBLE);
+    }
+
+    private static Value bool(String code) {
+        return new Value(code, Type.BOOLEAN);
+    }
+}
@@ -3,35 +3,97 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class Lox {
     private static final Interpreter interpreter = new Interpreter();
+    private static VM vm = null;
+    private static boolean streaming = false;
+    private static ScriptCache cache = null;
+    // Where --profile writes collapsed stacks for flame graph tools.
+    private static final String PROFILE = "profile.folded";
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
     public static void main(String[] args) throws IOException {
+        int first = 0;
+        for (; first < args.length; first++) {
+            if (args[first].equals("--vm")) {
+                vm = new VM();
+            } else if (args[first].equals("--jit")) {
+                Jit.enabled = true;
+            } else if (args[first].equals("--stream")) {
+                streaming = true;
+            } else if (args[first].equals("--lazy")) {
+                Parser.lazy = true;
+            } else if (args[first].equals("--profile")) {
+                Profiler.enabled = true;
+            } else if (args[first].equals("--cache")) {
+                cache = new ScriptCache(ScriptCache.defaultDirectory());
+            } else {
+                break;
+            }
+        }
 
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        if (args.length - first > 1) {
+            System.out.println("Usage: jlox [--vm] [--jit] [--stream]" +
+                    " [--lazy] [--cache] [--profile] [script]");
             System.exit(64); // [64]
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (args.length - first == 1) {
+            runFile(args[first]);
         } else {
             runPrompt();
         }
     }
         private static void runFile(String path) throws IOException {
-            byte[] bytes = Files.readAllBytes(Paths.get(path));
-            run(new String(bytes, Charset.defaultCharset()), false);
+            LoxEvents.Script event = new LoxEvents.Script();
+            event.begin();
+            Path file = Paths.get(path);
+            if (streaming) {
+                // Scans the mapped file as the parser asks for tokens
+                // instead of copying it and its tokens onto the heap.
+                MappedSource source = MappedSource.map(file);
+                runFile(source.bytes(), () -> new Parser(new Scanner(source)));
+            } else {
+                byte[] bytes = Files.readAllBytes(file);
+                runFile(ByteBuffer.wrap(bytes), () -> new Parser(
+                        ParallelScanner.scanTokens(
+                                new String(bytes, Charset.defaultCharset()))));
+            }
+            endScript(event, path);
+            // A script with static errors never ran, so there's nothing
+            // to report, and an old profile shouldn't be overwritten.
+            if (Profiler.enabled && !hadError) reportProfile();
             // Indicate an error in the exit code.
             if (hadError) System.exit(65);
             if (hadRuntimeError) System.exit(70);
         }
+        private static void runFile(ByteBuffer source,
+                                    Supplier<Parser> parser) {
+            if (cache == null) {
+                run(parser.get(), false);
+                return;
+            }
+
+            String key = ScriptCache.key(source);
+            List<Stmt> statements = cache.load(key, globals());
+            if (statements == null) {
+                // Only whole trees can be cached, so nothing is left to
+                // the pre-parser.
+                Parser.lazy = false;
+                statements = analyze(parser.get());
+                if (statements == null) return;
+                cache.store(key, statements);
+            }
+            execute(statements, false);
+        }
         private static void runPrompt() throws IOException {
             InputStreamReader input = new InputStreamReader(System.in);
             BufferedReader reader = new BufferedReader(input);
@@ -43,23 +105,56 @@ public class Lox {
                 run(line, true);
                 hadError = false;
             }
+            if (Profiler.enabled) reportProfile();
+        }
+        private static void reportProfile() throws IOException {
+            Profiler.report(System.err, Paths.get(PROFILE));
         }
         private static void run(String source, boolean isREPL) {
-            Scanner scanner = new Scanner(source);
-            List<Token> tokens = scanner.scanTokens();
-            Parser parser = new Parser(tokens);
+            LoxEvents.Script event = new LoxEvents.Script();
+            event.begin();
+            List<Token> tokens = ParallelScanner.scanTokens(source);
+            run(new Parser(tokens), isREPL);
+            endScript(event, "<prompt>");
+        }
+        private static void endScript(LoxEvents.Script event, String source) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.source = source;
+                event.hadError = hadError;
+                event.hadRuntimeError = hadRuntimeError;
+                event.commit();
+            }
+        }
+        private static void run(Parser parser, boolean isREPL) {
+            List<Stmt> statements = analyze(parser);
+            if (statements != null) execute(statements, isREPL);
+        }
+        // Parses and resolves a script, returning null if that reported
+        // any errors.
+        private static List<Stmt> analyze(Parser parser) {
             List<Stmt> statements = parser.parse();
             // Stop if there was a syntax error.
-            if (hadError) return;
+            if (hadError) return null;
 
-            Resolver resolver = new Resolver(interpreter);
+            Resolver resolver = new Resolver(globals());
             resolver.resolve(statements);
 
             // Stop if there was a resolution error.
-            if (hadError) return;
-
-            if (isREPL) runREPL(statements);
+            if (hadError) return null;
+            return statements;
+        }
+        // The globals the script will run in, which give out the slots of
+        // its global names.
+        private static Environment globals() {
+            return vm != null ? vm.globals : interpreter.globals;
+        }
+        private static void execute(List<Stmt> statements, boolean isREPL) {
+            if (Profiler.enabled) Profiler.start();
+            if (vm != null) runVM(statements, isREPL);
+            else if (isREPL) runREPL(statements);
             else interpreter.interpret(statements);
+            if (Profiler.enabled) Profiler.stop();
         }
         private static void runREPL(List<Stmt> statements){
             for (Stmt statement : statements) {
@@ -74,6 +169,25 @@ public class Lox {
                 }
             }
         }
+        private static void runVM(List<Stmt> statements, boolean isREPL) {
+            if (isREPL) {
+                List<Stmt> printed = new ArrayList<>();
+                for (Stmt statement : statements) {
+                    if (statement instanceof Stmt.Expression) {
+                        printed.add(new Stmt.Print(((Stmt.Expression) statement).expression));
+                    } else {
+                        printed.add(statement);
+                    }
+                }
+                statements = printed;
+            }
+
+            VmFunction script = new Compiler().compile(statements);
+            // Stop if the chunk couldn't be encoded.
+            if (hadError) return;
+
+            vm.interpret(script);
+        }
         static void error(int line, String message) {
             report(line, "", message);
         }
@@ -88,7 +202,7 @@ public class Lox {
             if (token.type == TokenType.EOF) {
                 report(token.line, " at end", message);
             } else {
-                report(token.line, " at '" + token.lexeme + "'", message);
+                report(token.line, " at '" + token.lexeme() + "'", message);
             }
         }
         static void runtimeError(RuntimeError error) {
@@ -96,11 +210,6 @@ public class Lox {
                     "\n[line " + error.token.line + "]");
             hadRuntimeError = true;
         }
-        static void BreakException(BreakException error) {
-            System.err.println(error.getMessage() +
-                    "\n[line " + error.token.line + "]");
-            hadRuntimeError = true;
-        }
         static void reportNativeFuncError(String message){
             System.err.println(message + "\n");
         }
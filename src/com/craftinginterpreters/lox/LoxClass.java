@@ -7,6 +7,8 @@ class LoxClass implements LoxCallable {
     final String name;
     final LoxClass superclass;
     private final Map<String, LoxFunction> methods;
+    final Shape rootShape = new Shape();
+    int fieldCapacity = 0;
 
     LoxClass(String name, LoxClass superclass,
              Map<String, LoxFunction> methods) {
@@ -35,10 +37,26 @@ class LoxClass implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
+        if (!LoxEvents.CLASS_INSTANTIATION.isEnabled()) {
+            return instantiate(interpreter, arguments);
+        }
+
+        LoxEvents.ClassInstantiation event =
+                new LoxEvents.ClassInstantiation();
+        event.begin();
+        LoxInstance instance = instantiate(interpreter, arguments);
+        if (event.shouldCommit()) {
+            event.loxClass = name;
+            event.commit();
+        }
+        return instance;
+    }
+    private LoxInstance instantiate(Interpreter interpreter,
+                                    List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
         LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.call(interpreter, instance, arguments);
         }
         return instance;
     }
@@ -0,0 +1,78 @@
+package com.craftinginterpreters.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Flight Recorder events for what a script does, so it shows up in the
+// same recording as GC and JIT activity. When no recording asks for an
+// event, creating and checking it compiles down to almost nothing.
+final class LoxEvents {
+    private LoxEvents() {}
+
+    // Checked before creating the events made on every call, so nothing
+    // is allocated for them unless a recording wants them.
+    static final EventType FUNCTION_CALL =
+            EventType.getEventType(FunctionCall.class);
+    static final EventType CLASS_INSTANTIATION =
+            EventType.getEventType(ClassInstantiation.class);
+
+    @Name("lox.FunctionCall")
+    @Label("Function Call")
+    @Category("Lox")
+    @Description("A call of a Lox function or method that took at least "
+            + "the threshold")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class FunctionCall extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        int line;
+    }
+
+    @Name("lox.ClassInstantiation")
+    @Label("Class Instantiation")
+    @Category("Lox")
+    @Description("A new instance, timed through its initializer")
+    @StackTrace(false)
+    static final class ClassInstantiation extends Event {
+        @Label("Class")
+        String loxClass;
+    }
+
+    @Name("lox.RuntimeError")
+    @Label("Runtime Error")
+    @Category("Lox")
+    @StackTrace(false)
+    static final class RuntimeErrorRaised extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+
+    @Name("lox.Script")
+    @Label("Script")
+    @Category("Lox")
+    @Description("Running a script, or a line at the prompt, from source "
+            + "to its last statement")
+    @StackTrace(false)
+    static final class Script extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Had Error")
+        boolean hadError;
+
+        @Label("Had Runtime Error")
+        boolean hadRuntimeError;
+    }
+}
@@ -5,20 +5,32 @@ import java.util.List;
 
 class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
-    private final Environment closure;
+    private final Object[] captures;
+    // The class a method is declared in, or null for a function.
+    private final String className;
+    private final boolean isMethod;
     private final boolean isInitializer;
+    private final LoxInstance receiver;
 
-    LoxFunction(Stmt.Function declaration, Environment closure,
-                boolean isInitializer) {
+    LoxFunction(Stmt.Function declaration, Object[] captures,
+                String className, boolean isInitializer) {
+        this(declaration, captures, className, isInitializer, null);
+    }
+    private LoxFunction(Stmt.Function declaration, Object[] captures,
+                        String className, boolean isInitializer,
+                        LoxInstance receiver) {
+        this.className = className;
+        this.isMethod = className != null;
         this.isInitializer = isInitializer;
-        this.closure = closure;
+        this.captures = captures;
         this.declaration = declaration;
+        this.receiver = receiver;
     }
+    // Only needed when a method is used as a value. Method calls go
+    // through call(interpreter, receiver, arguments) instead.
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment,
-                isInitializer);
+        return new LoxFunction(declaration, captures, className,
+                isInitializer, instance);
     }
     @Override
     public int arity() {
@@ -27,25 +39,87 @@ class LoxFunction implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
-        }
+        return call(interpreter, null, arguments);
+    }
+    // Calls the function with receiver as "this", or with the instance
+    // it's bound to when receiver is null. A body that ends in a tail
+    // call returns the call instead of making it, and the call is made
+    // here, so a chain of tail calls runs in a loop rather than nesting
+    // a Java frame for each one. Every other Lox call nests one frame
+    // here, so the body is run from this method, and tracing is kept
+    // out of it behind a flag check.
+    Object call(Interpreter interpreter, LoxInstance receiver,
+                List<Object> arguments) {
+        LoxFunction function = this;
+        if (receiver == null) receiver = this.receiver;
+        while (true) {
+            Object value;
+            if (Profiler.enabled || LoxEvents.FUNCTION_CALL.isEnabled()) {
+                value = function.callTraced(interpreter, receiver,
+                        arguments);
+            } else {
+                Jit.Code compiled = function.prepare();
+                value = compiled != null
+                        ? compiled.run(interpreter, function.captures,
+                                receiver, arguments)
+                        : interpreter.executeBody(function.declaration,
+                                function.captures, function.isMethod,
+                                receiver, arguments);
+            }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+            if (function.isInitializer) return receiver;
+            if (!(value instanceof TailCall)) return value;
 
-            return returnValue.value;
+            TailCall tail = (TailCall)value;
+            function = tail.function;
+            receiver = tail.receiver != null ? tail.receiver
+                                             : function.receiver;
+            arguments = tail.arguments;
+        }
+    }
+    // Gets the body ready to run and returns its compiled code, if the
+    // JIT has finished any.
+    private Jit.Code prepare() {
+        if (declaration.body == null) {
+            Resolver.resolveBody(declaration);
+            if (declaration.body == null) {
+                throw new RuntimeError(declaration.name,
+                        "Can't call a function whose body has errors.");
+            }
+        }
+        // Written by the JIT's thread, so it's read once.
+        Jit.Code compiled = declaration.compiled;
+        if (Jit.enabled && compiled == null) {
+            Jit.countCall(declaration, isMethod);
+        }
+        return compiled;
+    }
+    // Runs the body once, as call() does, for the profiler and JFR.
+    private Object callTraced(Interpreter interpreter, LoxInstance receiver,
+                              List<Object> arguments) {
+        Jit.Code compiled = prepare();
+        LoxEvents.FunctionCall event = new LoxEvents.FunctionCall();
+        if (Profiler.enabled) Profiler.enter(declaration, className);
+        event.begin();
+        try {
+            if (compiled != null) {
+                return compiled.run(interpreter, captures, receiver,
+                        arguments);
+            }
+            return interpreter.executeBody(declaration, captures, isMethod,
+                    receiver, arguments);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.function = declaration.name.lexeme();
+                event.line = declaration.name.line;
+                event.commit();
+            }
+            if (Profiler.enabled) Profiler.exit();
         }
-
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
     }
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + declaration.name.lexeme() + ">";
     }
-}
\ No newline at end of file
+}
@@ -1,31 +1,52 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    final LoxClass klass;
+    Shape shape;
+    Object[] values;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        this.values = new Object[klass.fieldCapacity];
     }
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int index = shape.indexOf(name.lexeme());
+        if (index != -1) {
+            return values[index];
         }
 
-        LoxFunction method = klass.findMethod(name.lexeme);
+        LoxFunction method = klass.findMethod(name.lexeme());
         if (method != null) return method.bind(this);
 
         throw new RuntimeError(name,
-                "Undefined property '" + name.lexeme + "'.");
+                "Undefined property '" + name.lexeme() + "'.");
     }
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int index = shape.indexOf(name.lexeme());
+        if (index == -1) {
+            store(shape.with(name.lexeme()), shape.size(), value);
+        } else {
+            values[index] = value;
+        }
+    }
+    // Writes a field whose layout is already known: newShape is either the
+    // current shape or the one that adds the field at index.
+    void store(Shape newShape, int index, Object value) {
+        if (index == values.length) {
+            values = Arrays.copyOf(values, index + 1);
+            // Size the next instance for every field seen so far.
+            if (klass.fieldCapacity < values.length) {
+                klass.fieldCapacity = values.length;
+            }
+        }
+        shape = newShape;
+        values[index] = value;
     }
     @Override
     public String toString() {
         return klass.name + " instance";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,55 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+// A script file mapped into memory and scanned in place. All of Lox's
+// syntax is ASCII, so the Scanner can read the bytes as chars directly;
+// only the text it asks for gets decoded, with the default charset that
+// a script read without --stream is decoded with.
+final class MappedSource implements CharSequence {
+    private final ByteBuffer bytes;
+
+    private MappedSource(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    static MappedSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            return new MappedSource(channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    ByteBuffer bytes() {
+        return bytes.duplicate();
+    }
+
+    @Override
+    public int length() {
+        return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char)(bytes.get(index) & 0xff);
+    }
+
+    // Decodes the bytes between start and end, so a string literal comes
+    // out with the characters it was written with. Offsets are still
+    // byte offsets, so the charset has to keep ASCII to one byte.
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        byte[] text = new byte[end - start];
+        bytes.get(start, text);
+        return new String(text, Charset.defaultCharset());
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+}
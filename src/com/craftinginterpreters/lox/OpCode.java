@@ -0,0 +1,49 @@
+package com.craftinginterpreters.lox;
+
+final class OpCode {
+    // Operands follow the opcode in the chunk. Constant indexes and jump
+    // offsets are two bytes (big endian), slots and counts are one byte.
+    static final byte CONSTANT      = 0;
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte GET_LOCAL     = 5;
+    static final byte SET_LOCAL     = 6;
+    static final byte GET_GLOBAL    = 7;
+    static final byte DEFINE_GLOBAL = 8;
+    static final byte SET_GLOBAL    = 9;
+    static final byte GET_UPVALUE   = 10;
+    static final byte SET_UPVALUE   = 11;
+    static final byte GET_PROPERTY  = 12;
+    static final byte SET_PROPERTY  = 13;
+    static final byte GET_SUPER     = 14;
+    static final byte EQUAL         = 15;
+    static final byte NOT_EQUAL     = 16;
+    static final byte GREATER       = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS          = 19;
+    static final byte LESS_EQUAL    = 20;
+    static final byte ADD           = 21;
+    static final byte SUBTRACT      = 22;
+    static final byte MULTIPLY      = 23;
+    static final byte DIVIDE        = 24;
+    static final byte NOT           = 25;
+    static final byte NEGATE        = 26;
+    static final byte PRINT         = 27;
+    static final byte JUMP          = 28;
+    static final byte JUMP_IF_FALSE = 29;
+    static final byte JUMP_IF_NOT_BOOL = 30;
+    static final byte LOOP          = 31;
+    static final byte CALL          = 32;
+    static final byte INVOKE        = 33;
+    static final byte SUPER_INVOKE  = 34;
+    static final byte CLOSURE       = 35;
+    static final byte CLOSE_UPVALUE = 36;
+    static final byte RETURN        = 37;
+    static final byte CLASS         = 38;
+    static final byte INHERIT       = 39;
+    static final byte METHOD        = 40;
+
+    private OpCode() {}
+}
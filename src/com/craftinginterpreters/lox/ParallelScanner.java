@@ -0,0 +1,142 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static com.craftinginterpreters.lox.TokenType.EOF;
+
+// Scans large sources on several threads. The source is cut into chunks
+// at line breaks and each chunk is scanned as if it began outside any
+// string or comment. Stitching the chunks together in order then checks
+// that guess: a chunk's tokens are kept only if the scan before it
+// stopped exactly where the chunk begins, and the chunk is rescanned
+// from where it actually stopped otherwise. The result is always what
+// a single Scanner produces.
+class ParallelScanner {
+    // Sources are only split into chunks at least this long.
+    private static final int MIN_CHUNK = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private ParallelScanner() {}
+
+    static List<Token> scanTokens(CharSequence source) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (threads == 1) return new Scanner(source).scanTokens();
+
+        int chunks = Math.min(threads * CHUNKS_PER_THREAD,
+                source.length() / MIN_CHUNK);
+        return scanTokens(source, chunks);
+    }
+
+    static List<Token> scanTokens(CharSequence source, int chunks) {
+        if (chunks <= 1) return new Scanner(source).scanTokens();
+
+        int[] starts = split(source, chunks);
+        chunks = starts.length - 1;
+
+        // Each chunk's scan has to start out on the right line, so the
+        // line breaks before it are counted first.
+        int[] lines = new int[chunks];
+        List<Future<Integer>> counts = ForkJoinPool.commonPool().invokeAll(
+                tasks(chunks, i -> countLines(source, starts[i],
+                        starts[i + 1])));
+        lines[0] = 1;
+        for (int i = 1; i < chunks; i++) {
+            lines[i] = lines[i - 1] + join(counts.get(i - 1));
+        }
+
+        List<Future<Chunk>> scans = ForkJoinPool.commonPool().invokeAll(
+                tasks(chunks, i -> new Chunk(source, starts[i],
+                        starts[i + 1], lines[i])));
+
+        List<Token> tokens = new ArrayList<>();
+        int position = 0;
+        int line = 1;
+        for (int i = 0; i < chunks; i++) {
+            // A token from an earlier chunk covered all of this one.
+            if (position >= starts[i + 1]) continue;
+
+            Chunk chunk = join(scans.get(i));
+            if (position != starts[i]) {
+                chunk = new Chunk(source, position, starts[i + 1], line);
+            }
+            tokens.addAll(chunk.tokens);
+            for (Runnable error : chunk.errors) error.run();
+            position = chunk.end;
+            line = chunk.endLine;
+        }
+
+        tokens.add(new Token(EOF, "", null, line));
+        return tokens;
+    }
+
+    private static class Chunk {
+        final List<Token> tokens = new ArrayList<>();
+        final List<Runnable> errors = new ArrayList<>();
+        final int end;
+        final int endLine;
+
+        Chunk(CharSequence source, int start, int limit, int line) {
+            Scanner scanner = new Scanner(source, start, limit, line, errors);
+            for (Token token = scanner.next(); token.type != EOF;
+                 token = scanner.next()) {
+                tokens.add(token);
+            }
+            end = scanner.position();
+            endLine = scanner.line();
+        }
+    }
+
+    // Returns the chunk boundaries, each just after a line break, with
+    // 0 first and the source length last.
+    private static int[] split(CharSequence source, int chunks) {
+        int length = source.length();
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 1; i < chunks; i++) {
+            int start = Math.max((int)((long)length * i / chunks),
+                    starts.get(starts.size() - 1) + 1);
+            while (start < length && source.charAt(start - 1) != '\n') {
+                start++;
+            }
+            if (start > starts.get(starts.size() - 1) && start < length) {
+                starts.add(start);
+            }
+        }
+        starts.add(length);
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int countLines(CharSequence source, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (source.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+
+    private interface ChunkTask<T> {
+        T run(int chunk);
+    }
+
+    private static <T> List<Callable<T>> tasks(int chunks, ChunkTask<T> task) {
+        List<Callable<T>> tasks = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            int chunk = i;
+            tasks.add(() -> task.run(chunk));
+        }
+        return tasks;
+    }
+
+    private static <T> T join(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+}
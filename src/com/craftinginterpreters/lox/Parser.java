@@ -1,18 +1,85 @@
 package com.craftinginterpreters.lox;
 
 import java.util.List;
-import java.util.Arrays;
 import java.util.ArrayList;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 class Parser {
     private static class ParseError extends RuntimeException {}
-    private final List<Token> tokens;
+
+    // Binding power of each token used as an infix operator, indexed by
+    // TokenType ordinal. Anything that isn't an operator stays at NONE,
+    // which ends the expression.
+    private static final int NONE       = 0;
+    private static final int ASSIGNMENT = 1;
+    private static final int TERNARY    = 2;
+    private static final int LOGIC_OR   = 3;
+    private static final int LOGIC_AND  = 4;
+    private static final int EQUALITY   = 5;
+    private static final int COMPARISON = 6;
+    private static final int TERM       = 7;
+    private static final int FACTOR     = 8;
+    private static final int UNARY      = 9;
+    private static final int CALL       = 10;
+
+    private static final byte[] INFIX = new byte[TokenType.values().length];
+    private static final boolean[] PREFIX =
+            new boolean[TokenType.values().length];
+    static {
+        infix(ASSIGNMENT, EQUAL);
+        infix(TERNARY, QUESTION_MARK);
+        infix(LOGIC_OR, OR);
+        infix(LOGIC_AND, AND);
+        infix(EQUALITY, BANG_EQUAL, EQUAL_EQUAL);
+        infix(COMPARISON, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
+        infix(TERM, MINUS, PLUS);
+        infix(FACTOR, SLASH, STAR);
+        infix(CALL, LEFT_PAREN, DOT);
+
+        for (TokenType type : new TokenType[] {FALSE, TRUE, NIL, NUMBER,
+                STRING, SUPER, THIS, IDENTIFIER, LEFT_PAREN, BANG, MINUS}) {
+            PREFIX[type.ordinal()] = true;
+        }
+    }
+    private static void infix(int precedence, TokenType... types) {
+        for (TokenType type : types) INFIX[type.ordinal()] = (byte)precedence;
+    }
+
+    // Expressions nested deeper than this, counting groupings, unary
+    // operands, call arguments and assigned values, are reported instead
+    // of overflowing the stack here or in the passes that walk the tree
+    // afterwards.
+    private static final int MAX_DEPTH = 750;
+    // How many tokens are read ahead from a streaming source at a time.
+    private static final int WINDOW = 4096;
+    // Only match the braces of function bodies, leaving them to be parsed
+    // the first time the function is called.
+    static boolean lazy = false;
+
+    private final TokenSource source;
+    // The window of tokens read so far, with their types alongside as
+    // ordinals so checking the next token doesn't touch the Token.
+    private final Token[] tokens;
+    private final byte[] types;
     private int current = 0;
+    private int count = 0;
+    private Token previous = null;
+    private int depth = 0;
 
     Parser(List<Token> tokens) {
-        this.tokens = tokens;
+        this(tokens.iterator()::next, tokens.size());
+    }
+
+    Parser(TokenSource tokens) {
+        this(tokens, WINDOW);
+    }
+
+    private Parser(TokenSource source, int window) {
+        this.source = source;
+        this.tokens = new Token[window];
+        this.types = new byte[window];
+        fill();
     }
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
@@ -23,8 +90,7 @@ class Parser {
         return statements;
     }
     private Expr expression() {
-        return assignment();
-        // return comma();
+        return expression(ASSIGNMENT);
     }
     private Stmt declaration() {
         try {
@@ -32,6 +98,9 @@ class Parser {
 
             return statement();
         } catch (ParseError error) {
+            // Expressions can't contain declarations, so any that were
+            // being parsed have been abandoned.
+            depth = 0;
             synchronize();
             return null;
         }
@@ -103,22 +172,8 @@ class Parser {
         // body of the for loop
         Stmt body = statement();
 
-        // desugaring the for loop into a while loop
-        if (increment != null) {
-            body = new Stmt.Block(
-                    Arrays.asList(
-                            body,
-                            new Stmt.Expression(increment)));
-        }
-
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
-
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-
-        return body;
+        return new Stmt.For(initializer, condition, increment, body);
     }
     private Stmt ifStatement() {
         consume(LEFT_PAREN, "Expect '(' after 'if'.");
@@ -189,153 +244,141 @@ class Parser {
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
         
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
-        return new Stmt.Function(name, parameters, body);
-    }
-    private List<Stmt> block() {
-        List<Stmt> statements = new ArrayList<>();
-
-        while (!check(RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
-        }
-
-        consume(RIGHT_BRACE, "Expect '}' after block.");
-        return statements;
-    }
-    /*
-    private Expr comma(){
-        Expr expr = assignment();
-
-        while(match(COMMA)) {
-            Token operator = previous();
-            Expr right = assignment();
-            expr = new Expr.Binary(expr, operator, right);
+        Stmt.Function function = new Stmt.Function(name, parameters);
+        if (lazy) {
+            function.bodyTokens = skipBody();
+        } else {
+            function.body = block();
         }
-
-        return expr;
+        return function;
     }
-     */
-    private Expr assignment() {
-        Expr expr = ternary();
-
-        if (match(EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
-            } else if (expr instanceof Expr.Get) {
-                Expr.Get get = (Expr.Get)expr;
-                return new Expr.Set(get.object, get.name, value);
+    // Collects the tokens of a body through its closing brace, followed by
+    // an EOF so parseBody() can treat them as a source of their own.
+    private List<Token> skipBody() {
+        List<Token> body = new ArrayList<>();
+        int braces = 1;
+        while (!isAtEnd()) {
+            if (check(LEFT_BRACE)) {
+                braces++;
+            } else if (check(RIGHT_BRACE) && --braces == 0) {
+                break;
             }
-
-            error(equals, "Invalid assignment target.");
-        }
-
-        return expr;
-    }
-    private Expr ternary(){
-        Expr expr = or();
-        if(match(QUESTION_MARK)) {
-            Expr ifTruePart = or();
-            consume(COLON, "A colon is expected in a ternary operation");
-            Expr ifFalsePart = or();
-            expr = new Expr.Ternary(expr, ifTruePart, ifFalsePart);
-        }
-        return expr;
-    }
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-    private Expr and() {
-        Expr expr = equality();
-
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+            body.add(advance());
         }
 
-        return expr;
+        Token end = consume(RIGHT_BRACE, "Expect '}' after block.");
+        body.add(end);
+        body.add(new Token(EOF, "", null, end.line));
+        return body;
     }
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+    // Returns null if the body had a syntax error.
+    static List<Stmt> parseBody(List<Token> tokens) {
+        try {
+            return new Parser(tokens).block();
+        } catch (ParseError error) {
+            return null;
         }
-
-        return expr;
     }
-    private Expr comparison() {
-        Expr expr = term();
+    private List<Stmt> block() {
+        List<Stmt> statements = new ArrayList<>();
 
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+        while (!check(RIGHT_BRACE) && !isAtEnd()) {
+            statements.add(declaration());
         }
 
-        return expr;
+        consume(RIGHT_BRACE, "Expect '}' after block.");
+        return statements;
     }
-    private Expr term() {
-        Expr expr = factor();
+    // Parses an expression whose operators all bind at least as tightly
+    // as precedence.
+    private Expr expression(int precedence) {
+        Expr expr = prefix();
+        boolean ternary = false;
 
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+        while (true) {
+            int infix = INFIX[types[current]];
+            if (infix < precedence || infix == NONE) break;
+            // A ternary can only be followed by an assignment.
+            if (ternary && infix == TERNARY) break;
+
+            Token operator = advance();
+            switch (operator.type) {
+                case EQUAL -> {
+                    return assignment(expr, operator);
+                }
+                case QUESTION_MARK -> {
+                    Expr ifTruePart = expression(LOGIC_OR);
+                    consume(COLON,
+                            "A colon is expected in a ternary operation");
+                    Expr ifFalsePart = expression(LOGIC_OR);
+                    expr = new Expr.Ternary(expr, ifTruePart, ifFalsePart);
+                    ternary = true;
+                }
+                case OR, AND -> expr = new Expr.Logical(expr, operator,
+                        expression(infix + 1));
+                case LEFT_PAREN -> expr = finishCall(expr);
+                case DOT -> {
+                    Token name = consume(IDENTIFIER,
+                            "Expect property name after '.'.");
+                    expr = new Expr.Get(expr, name);
+                }
+                default -> expr = new Expr.Binary(expr, operator,
+                        expression(infix + 1));
+            }
         }
 
         return expr;
     }
-    private Expr factor() {
-        Expr expr = unary();
-
-        while (match(SLASH, STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    // Parses an expression inside the one being parsed. Operands of binary
+    // operators only nest as deep as there are precedence levels, so
+    // these are the places an expression can nest without bound.
+    private Expr nested(int precedence) {
+        if (depth == MAX_DEPTH) {
+            throw error(peek(), "Expression is nested too deeply.");
         }
-
+        depth++;
+        Expr expr = expression(precedence);
+        depth--;
         return expr;
     }
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
-
-        return call();
+    private Expr prefix() {
+        if (!PREFIX[types[current]]) throw error(peek(), "Expect expression.");
+        Token token = advance();
+
+        return switch (token.type) {
+            case FALSE -> new Expr.Literal(false);
+            case TRUE -> new Expr.Literal(true);
+            case NIL -> new Expr.Literal(null);
+            case NUMBER, STRING -> new Expr.Literal(token.literal);
+            case SUPER -> {
+                consume(DOT, "Expect '.' after 'super'.");
+                Token method = consume(IDENTIFIER,
+                        "Expect superclass method name.");
+                yield new Expr.Super(token, method, new Expr.This(token));
+            }
+            case THIS -> new Expr.This(token);
+            case IDENTIFIER -> new Expr.Variable(token);
+            case LEFT_PAREN -> {
+                Expr expr = nested(ASSIGNMENT);
+                consume(RIGHT_PAREN, "Expect ')' after expression.");
+                yield new Expr.Grouping(expr);
+            }
+            default -> new Expr.Unary(token, nested(UNARY));
+        };
     }
-    private Expr call() {
-        Expr expr = primary();
+    private Expr assignment(Expr target, Token equals) {
+        Expr value = nested(ASSIGNMENT);
 
-        while (true) {
-            if (match(LEFT_PAREN)) {
-                expr = finishCall(expr);
-              } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER,
-                        "Expect property name after '.'.");
-                expr = new Expr.Get(expr, name);
-              } else {
-                break;
-              }
+        if (target instanceof Expr.Variable) {
+            Token name = ((Expr.Variable)target).name;
+            return new Expr.Assign(name, value);
+        } else if (target instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)target;
+            return new Expr.Set(get.object, get.name, value);
         }
 
-        return expr;
+        error(equals, "Invalid assignment target.");
+        return target;
     }
     private Expr finishCall(Expr callee) {
         List<Expr> arguments = new ArrayList<>();
@@ -344,7 +387,7 @@ class Parser {
                 if (arguments.size() >= 255) {
                     error(peek(), "Can't have more than 255 arguments.");
                 }
-                arguments.add(expression());
+                arguments.add(nested(ASSIGNMENT));
             } while (match(COMMA));
         }
 
@@ -353,44 +396,10 @@ class Parser {
 
         return new Expr.Call(callee, paren, arguments);
     }
-    private Expr primary() {
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(null);
-
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
-
-        if (match(SUPER)) {
-            Token keyword = previous();
-            consume(DOT, "Expect '.' after 'super'.");
-            Token method = consume(IDENTIFIER,
-                    "Expect superclass method name.");
-            return new Expr.Super(keyword, method);
-        }
-
-        if (match(THIS)) return new Expr.This(previous());
-
-        if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
-        }
-
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-
-        throw error(peek(), "Expect expression.");
-    }
-
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
 
         return false;
@@ -402,22 +411,36 @@ class Parser {
     }
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return types[current] == type.ordinal();
     }
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = tokens[current++];
+            if (current == count) fill();
+        }
         return previous();
     }
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return types[current] == EOF.ordinal();
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens[current];
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
+    }
+    // Reads the next window of tokens, stopping early at the end.
+    private void fill() {
+        current = 0;
+        count = 0;
+        Token token;
+        do {
+            token = source.next();
+            tokens[count] = token;
+            types[count++] = (byte)token.type.ordinal();
+        } while (token.type != EOF && count < tokens.length);
     }
     private ParseError error(Token token, String message) {
         Lox.error(token, message);
@@ -0,0 +1,217 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Times every call a script makes under --profile. Calls are recorded in
+// a calling-context tree, so each distinct stack keeps its own count and
+// time. That tree is reported two ways: summed per function, and as
+// collapsed stacks ("a;b;c <microseconds>") that flame graph tools read.
+final class Profiler {
+    static boolean enabled = false;
+
+    private static final class Frame {
+        final Frame parent;
+        final Object key;
+        final String name;
+        final Map<Object, Frame> children = new LinkedHashMap<>();
+        long calls;
+        // Inclusive nanoseconds over all calls.
+        long time;
+        long started;
+
+        Frame(Frame parent, Object key, String name) {
+            this.parent = parent;
+            this.key = key;
+            this.name = name;
+        }
+
+        long selfTime() {
+            long self = time;
+            for (Frame child : children.values()) self -= child.time;
+            return self;
+        }
+    }
+
+    private static final class Function {
+        final String name;
+        long calls;
+        long inclusive;
+        long exclusive;
+
+        Function(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final Frame root = new Frame(null, null, "<script>");
+    private static Frame current = root;
+
+    private Profiler() {}
+
+    static void start() {
+        root.calls++;
+        root.started = System.nanoTime();
+    }
+    static void stop() {
+        root.time += System.nanoTime() - root.started;
+        current = root;
+    }
+
+    // Methods are named after their class too, so that init and other
+    // common names don't run together between classes.
+    static void enter(Stmt.Function declaration, String className) {
+        Frame frame = current.children.get(declaration);
+        if (frame == null) {
+            String name = declaration.name.lexeme() + ":" +
+                    declaration.name.line;
+            if (className != null) name = className + "." + name;
+            frame = new Frame(current, declaration, name);
+            current.children.put(declaration, frame);
+        }
+        enter(frame);
+    }
+    static void exit() {
+        current.time += System.nanoTime() - current.started;
+        current = current.parent;
+    }
+
+    // Calls a class or native function as a frame of its own. Natives all
+    // print as "<native fn>", so they're named after the expression that
+    // was called instead.
+    static Object call(LoxCallable callable, Expr callee,
+                       Interpreter interpreter, List<Object> arguments) {
+        Frame frame = current.children.get(callable);
+        if (frame == null) {
+            String name = callable.toString();
+            if (callee instanceof Expr.Variable) {
+                name = ((Expr.Variable)callee).name.lexeme();
+            } else if (callee instanceof Expr.Get) {
+                name = ((Expr.Get)callee).name.lexeme();
+            }
+            frame = new Frame(current, callable, name);
+            current.children.put(callable, frame);
+        }
+
+        enter(frame);
+        try {
+            return callable.call(interpreter, arguments);
+        } finally {
+            exit();
+        }
+    }
+    private static void enter(Frame frame) {
+        frame.calls++;
+        frame.started = System.nanoTime();
+        current = frame;
+    }
+
+    // Prints calls and times per function, heaviest first, and writes the
+    // collapsed stacks to path.
+    static void report(PrintStream out, Path path) throws IOException {
+        Map<Object, Function> functions = new LinkedHashMap<>();
+        summarize(functions);
+        List<Function> sorted = new ArrayList<>(functions.values());
+        sorted.sort((a, b) -> Long.compare(b.exclusive, a.exclusive));
+
+        out.printf("%12s %14s %14s  %s%n",
+                "calls", "inclusive ms", "exclusive ms", "function");
+        out.printf("%12d %14.3f %14.3f  %s%n", root.calls,
+                root.time / 1e6, root.selfTime() / 1e6, root.name);
+        for (Function function : sorted) {
+            out.printf("%12d %14.3f %14.3f  %s%n", function.calls,
+                    function.inclusive / 1e6, function.exclusive / 1e6,
+                    function.name);
+        }
+
+        try (PrintWriter writer = new PrintWriter(
+                Files.newBufferedWriter(path))) {
+            collapse(writer);
+        }
+        out.println("Wrote collapsed stacks to " + path + ".");
+    }
+    // A recursive function's inclusive time only counts its outermost
+    // calls, or each level would be counted again by the one above it.
+    private static void summarize(Map<Object, Function> functions) {
+        Map<Object, Integer> active = new HashMap<>();
+        walk(new FrameVisitor() {
+            @Override
+            public void enter(Frame frame) {
+                if (frame == root) return;
+                Function function = functions.get(frame.key);
+                if (function == null) {
+                    function = new Function(frame.name);
+                    functions.put(frame.key, function);
+                }
+                function.calls += frame.calls;
+                function.exclusive += frame.selfTime();
+                int depth = active.getOrDefault(frame.key, 0);
+                if (depth == 0) function.inclusive += frame.time;
+                active.put(frame.key, depth + 1);
+            }
+            @Override
+            public void exit(Frame frame) {
+                if (frame == root) return;
+                active.merge(frame.key, -1, Integer::sum);
+            }
+        });
+    }
+    private static void collapse(PrintWriter writer) {
+        StringBuilder stack = new StringBuilder();
+        Deque<Integer> lengths = new ArrayDeque<>();
+        walk(new FrameVisitor() {
+            @Override
+            public void enter(Frame frame) {
+                lengths.push(stack.length());
+                if (stack.length() > 0) stack.append(';');
+                stack.append(frame.name);
+
+                long micros = frame.selfTime() / 1000;
+                if (micros > 0) writer.println(stack + " " + micros);
+            }
+            @Override
+            public void exit(Frame frame) {
+                stack.setLength(lengths.pop());
+            }
+        });
+    }
+
+    private interface FrameVisitor {
+        void enter(Frame frame);
+        void exit(Frame frame);
+    }
+    // Visits the tree depth first, entering each frame before its children
+    // and exiting it after them. The tree is as deep as the script's
+    // deepest call, which may be where it ran out of stack, so the walk
+    // keeps its own stack instead of recursing.
+    private static void walk(FrameVisitor visitor) {
+        Deque<Frame> path = new ArrayDeque<>();
+        Deque<Iterator<Frame>> pending = new ArrayDeque<>();
+        visitor.enter(root);
+        path.push(root);
+        pending.push(root.children.values().iterator());
+        while (!pending.isEmpty()) {
+            Iterator<Frame> children = pending.peek();
+            if (children.hasNext()) {
+                Frame child = children.next();
+                visitor.enter(child);
+                path.push(child);
+                pending.push(child.children.values().iterator());
+            } else {
+                pending.pop();
+                visitor.exit(path.pop());
+            }
+        }
+    }
+}
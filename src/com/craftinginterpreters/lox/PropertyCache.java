@@ -0,0 +1,92 @@
+package com.craftinginterpreters.lox;
+
+class PropertyCache {
+    // A site that has seen more shapes than this stops caching and always
+    // takes the slow path.
+    private static final int MAX_ENTRIES = 4;
+
+    // Shapes belong to a single class and a class's methods never change
+    // once it is created, so an entry stays valid for as long as its
+    // shape exists.
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    private final int[] indexes = new int[MAX_ENTRIES];
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES];
+    private final Shape[] transitions = new Shape[MAX_ENTRIES];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    Object get(LoxInstance instance, Token name) {
+        int entry = lookup(instance, name);
+        if (entry == -1) return instance.get(name);
+
+        if (indexes[entry] != -1) return instance.values[indexes[entry]];
+        return methods[entry].bind(instance);
+    }
+
+    // Returns the method a call through this site should run with instance
+    // as its receiver, or null when the name refers to a field.
+    LoxFunction findMethod(LoxInstance instance, Token name) {
+        int entry = lookup(instance, name);
+        if (entry != -1) return methods[entry];
+
+        if (instance.shape.indexOf(name.lexeme()) != -1) return null;
+        return instance.klass.findMethod(name.lexeme());
+    }
+
+    // Finds or creates the entry for instance's shape. Returns -1 once the
+    // site has gone megamorphic.
+    private int lookup(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) return i;
+        }
+        if (megamorphic) return -1;
+
+        int index = shape.indexOf(name.lexeme());
+        LoxFunction method = null;
+        if (index == -1) {
+            method = instance.klass.findMethod(name.lexeme());
+            if (method == null) {
+                throw new RuntimeError(name,
+                        "Undefined property '" + name.lexeme() + "'.");
+            }
+        }
+        return add(shape, index, method, null);
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                instance.store(transitions[i], indexes[i], value);
+                return;
+            }
+        }
+        if (megamorphic) {
+            instance.set(name, value);
+            return;
+        }
+
+        int index = shape.indexOf(name.lexeme());
+        Shape transition = shape;
+        if (index == -1) {
+            transition = shape.with(name.lexeme());
+            index = shape.size();
+        }
+        add(shape, index, null, transition);
+        instance.store(transition, index, value);
+    }
+
+    private int add(Shape shape, int index, LoxFunction method,
+                    Shape transition) {
+        if (size == MAX_ENTRIES) {
+            megamorphic = true;
+            return -1;
+        }
+        shapes[size] = shape;
+        indexes[size] = index;
+        methods[size] = method;
+        transitions[size] = transition;
+        return size++;
+    }
+}
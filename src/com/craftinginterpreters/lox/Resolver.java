@@ -1,19 +1,19 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Var>> scopes = new Stack<>();
+    // The innermost local bound to each name. A binding links to the one
+    // it shadows, so leaving a scope restores the outer ones.
+    private final Map<String, Var> bindings = new HashMap<>();
+    // The locals declared in each open scope, in slot order.
+    private final List<List<Var>> scopes = new ArrayList<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private WhileType currentWhile = WhileType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -27,17 +27,82 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private ClassType currentClass = ClassType.NONE;
+    // Top-level code is a function with nothing around it to capture.
+    private Closure closure = new Closure(null, null, FunctionType.NONE);
+    // The function a snapshot was taken for.
+    private Closure deferred = null;
+
+    // Where global names are given their slots.
+    private final Environment globals;
+
+    Resolver(Environment globals) {
+        this.globals = globals;
+    }
+
+    // Snapshots what a pre-parsed body can see, so it can be resolved
+    // later as if it were resolved here. Scopes are copied because names
+    // declared after the function aren't visible to it.
+    private Resolver(Resolver enclosing, Closure function) {
+        globals = enclosing.globals;
+        bindings.putAll(enclosing.bindings);
+        // The enclosing scopes are only placeholders that keep scope
+        // indexes right. Checking them is up to the resolver that owns them.
+        for (int i = 0; i < enclosing.scopes.size(); i++) {
+            scopes.add(new ArrayList<>());
+        }
+        currentClass = enclosing.currentClass;
+        closure = function.enclosing;
+        deferred = function;
+    }
+    // A function being resolved, and the variables from functions around
+    // it that it captures, in the order it stores them. Its locals get
+    // slots in one frame, which nested scopes reuse once they end.
+    private static class Closure {
+        final Closure enclosing;
+        final Stmt.Function function;
+        final FunctionType type;
+        final List<Var> captured = new ArrayList<>();
+        // Slots taken by the scopes that are open, and the most ever taken.
+        int used;
+        int frameSize;
+
+        Closure(Closure enclosing, Stmt.Function function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
     private enum WhileType {
         NONE,
         WHILE
     }
     private static class Var {
         final Token name;
+        final String key;
+        // Its slot in the frame of the function that owns it.
+        final int slot;
+        // Index of the scope it was declared in.
+        final int scope;
+        final Var shadowed;
+        // The function whose scopes it's declared in.
+        final Closure owner;
         VarState state;
+        boolean assigned;
+        // Set while its function or class is being declared, when closures
+        // can capture it before it has a value.
+        boolean initializing;
+        // The closures that capture it straight from its slot.
+        List<Capture> captures;
 
-        private Var(Token name, VarState state) {
+        private Var(Token name, String key, VarState state, int slot,
+                    int scope, Var shadowed, Closure owner) {
             this.name = name;
+            this.key = key;
             this.state = state;
+            this.slot = slot;
+            this.scope = scope;
+            this.shadowed = shadowed;
+            this.owner = owner;
         }
     }
 
@@ -49,20 +114,22 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        stmt.firstSlot = closure.used;
         beginScope();
         resolve(stmt.statements);
         endScope();
+        stmt.frameSize = closure.frameSize;
         return null;
     }
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
 
         if (stmt.superclass != null &&
-                stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+                stmt.name.lexeme().equals(stmt.superclass.name.lexeme())) {
             Lox.error(stmt.superclass.name,
                     "A class can't inherit from itself.");
         }
@@ -72,25 +139,24 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.superclass);
         }
 
+        // The class only gets its value once its methods are created.
+        initializing(stmt.name, true);
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", new Var(stmt.superclass.name, VarState.USED));
+            stmt.superclassSlot =
+                    bind("super", stmt.superclass.name, VarState.USED).slot;
         }
 
-        beginScope();
-        scopes.peek().put("this", new Var(stmt.name, VarState.USED));
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.lexeme().equals("init")) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
+        initializing(stmt.name, false);
 
         currentClass = enclosingClass;
         return null;
@@ -102,9 +168,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
+        initializing(stmt.name, true);
         resolveFunction(stmt, FunctionType.FUNCTION);
+        initializing(stmt.name, false);
         return null;
     }
     @Override
@@ -131,10 +199,26 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             }
 
             resolve(stmt.value);
+            if (currentFunction != FunctionType.NONE) markTail(stmt.value);
         }
 
         return null;
     }
+    // Nothing is left to do in the function after a call whose value it
+    // returns, so the call can run once the frame is gone. That holds for
+    // a call that picks the value of a ?: or the right of an and/or too.
+    private static void markTail(Expr expr) {
+        if (expr instanceof Expr.Call) {
+            ((Expr.Call)expr).tail = true;
+        } else if (expr instanceof Expr.Grouping) {
+            markTail(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Ternary) {
+            markTail(((Expr.Ternary)expr).ifTruePart);
+            markTail(((Expr.Ternary)expr).ifFalsePart);
+        } else if (expr instanceof Expr.Logical) {
+            markTail(((Expr.Logical)expr).right);
+        }
+    }
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         WhileType tempWhileState = currentWhile;
@@ -145,8 +229,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
     @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        stmt.firstSlot = closure.used;
+        beginScope();
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        WhileType tempWhileState = currentWhile;
+        currentWhile = WhileType.WHILE;
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
+        currentWhile = tempWhileState;
+        endScope();
+        stmt.frameSize = closure.frameSize;
+        return null;
+    }
+    @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -156,14 +255,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitBreakStmt(Stmt.Break stmt){
         if (currentWhile == WhileType.NONE) {
-            Lox.error(stmt.name, "Can't return from top-level code.");
+            Lox.error(stmt.name, "Break must be within a while statement");
         }
         return null;
     }
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Var var = bindings.get(expr.name.lexeme());
+        if (var == null) {
+            expr.slot = globals.globalSlot(expr.name.lexeme());
+            return null;
+        }
+
+        var.assigned = true;
+        expr.capture = capture(closure, var);
+        if (expr.capture == -1) {
+            expr.local = true;
+            expr.slot = var.slot;
+        }
         return null;
     }
     @Override
@@ -218,7 +328,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                     "Can't use 'super' in a class with no superclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        Var var = bindings.get("super");
+        if (var != null) expr.capture = capture(closure, var);
+        if (currentClass != ClassType.NONE) resolve(expr.receiver);
         return null;
     }
     @Override
@@ -229,7 +341,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return null;
         }
 
-        resolveLocal(expr, expr.keyword);
+        Var var = bindings.get("this");
+        if (var == null) return null;
+
+        expr.capture = capture(closure, var);
+        if (expr.capture == -1) {
+            expr.local = true;
+            expr.slot = var.slot;
+        }
         return null;
     }
     @Override
@@ -247,49 +366,53 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        int scopeDistance = scopes.size()-1;
-        if(scopes.isEmpty()){
-            return null;
-        }
-        if(scopes.peek().get(expr.name.lexeme)==null && checkIfHasValue(expr)==-1){
-            resolveLocal(expr, expr.name);
+        Var var = bindings.get(expr.name.lexeme());
+        if (var == null) {
+            expr.slot = globals.globalSlot(expr.name.lexeme());
             return null;
         }
-        else if(checkIfHasValue(expr)!=-1){
-            scopeDistance = checkIfHasValue(expr);
-        }
 
-        VarState variableState = scopes.get(scopeDistance).get(expr.name.lexeme).state;
-        if (!scopes.isEmpty() &&
-                variableState == VarState.DECLARED) {
+        if (var.state == VarState.DECLARED) {
             Lox.error(expr.name,
                     "Can't read local variable in its own initializer.");
-
-        } else if (!scopes.isEmpty() &&
-                (variableState == VarState.DEFINED || variableState == VarState.USED)) {
-            setUsedInAllLowerScopes(expr);
-            scopes.peek().put(expr.name.lexeme, new Var(expr.name, VarState.USED));
+        } else {
+            markUsed(var);
+        }
+        expr.capture = capture(closure, var);
+        if (expr.capture == -1) {
+            expr.local = true;
+            expr.slot = var.slot;
         }
-        resolveLocal(expr, expr.name);
         return null;
     }
-    private int checkIfHasValue(Expr.Variable expr) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).get(expr.name.lexeme)!=null) {
-                return i;
-            }
+    // Reading a name also counts as a use of every local it shadows.
+    private void markUsed(Var var) {
+        for (; var != null; var = var.shadowed) {
+            var.state = VarState.USED;
         }
-        return -1;
     }
 
-    private void setUsedInAllLowerScopes(Expr.Variable expr){
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if(scopes.get(i).containsKey(expr.name.lexeme)){
-                scopes.get(i).put(expr.name.lexeme, new Var(expr.name, VarState.USED));
-            }
+    // Parses and resolves the body of a function that was only pre-parsed,
+    // reporting its errors now. The body stays null if there were any.
+    static void resolveBody(Stmt.Function function) {
+        boolean hadError = Lox.hadError;
+        Lox.hadError = false;
+
+        function.body = Parser.parseBody(function.bodyTokens);
+        // Stop if there was a syntax error.
+        if (!Lox.hadError) {
+            function.resolver.resolveFunction(function,
+                    function.resolver.deferred);
+        }
+        if (Lox.hadError) {
+            function.body = null;
+        } else {
+            function.bodyTokens = null;
+            function.resolver = null;
         }
-    }
 
+        Lox.hadError |= hadError;
+    }
     void resolve(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
@@ -297,16 +420,93 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
     private void resolveFunction(
           Stmt.Function function, FunctionType type) {
+        function.captures = new ArrayList<>();
+        resolveFunction(function, new Closure(closure, function, type));
+    }
+    private void resolveFunction(Stmt.Function function, Closure inner) {
+        if (function.body == null) {
+            if (!scopes.isEmpty()) captureAll(function.bodyTokens, inner);
+            function.resolver = new Resolver(this, inner);
+            return;
+        }
+
         FunctionType enclosingFunction = currentFunction;
-        currentFunction = type;
+        currentFunction = inner.type;
+        Closure enclosingClosure = closure;
+        closure = inner;
+        // A break can't leave the function it's in.
+        WhileType enclosingWhile = currentWhile;
+        currentWhile = WhileType.NONE;
         beginScope();
+        // Methods receive "this" in the first slot of their own scope,
+        // ahead of the parameters.
+        if (inner.type == FunctionType.METHOD ||
+                inner.type == FunctionType.INITIALIZER) {
+            bind("this", function.name, VarState.USED);
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
         endScope();
+        function.frameSize = inner.frameSize;
         currentFunction = enclosingFunction;
+        closure = enclosingClosure;
+        currentWhile = enclosingWhile;
+    }
+    // A pre-parsed body is resolved after its closure is created, so the
+    // closure captures every enclosing local the body names, sharing any
+    // that it looks like the body assigns. The names count as uses too,
+    // since those scopes are checked before the body is parsed.
+    private void captureAll(List<Token> tokens, Closure inner) {
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            switch (token.type) {
+                case IDENTIFIER -> {
+                    Var var = bindings.get(token.lexeme());
+                    if (var == null) continue;
+                    markUsed(var);
+                    // The body ends with "}", so there's always a next.
+                    if (tokens.get(i + 1).type == TokenType.EQUAL) {
+                        var.assigned = true;
+                    }
+                    capture(inner, var);
+                }
+                case THIS, SUPER -> {
+                    Var var = bindings.get("this");
+                    if (var != null) capture(inner, var);
+                    var = bindings.get("super");
+                    if (var != null && token.type == TokenType.SUPER) {
+                        capture(inner, var);
+                    }
+                }
+            }
+        }
+    }
+    // Returns where closure stores var among its captures, adding it
+    // there and to every function in between as needed, or -1 if var is
+    // one of its own locals.
+    private static int capture(Closure closure, Var var) {
+        if (var.owner == closure) return -1;
+        int index = closure.captured.indexOf(var);
+        if (index != -1) return index;
+
+        Capture capture;
+        if (var.owner == closure.enclosing) {
+            // A function or class that captures itself is created before
+            // it's stored, so it needs the cell to see its own value.
+            if (var.initializing) var.assigned = true;
+            capture = new Capture(true, var.slot, var.assigned);
+            if (var.captures == null) var.captures = new ArrayList<>();
+            var.captures.add(capture);
+        } else {
+            capture = new Capture(false, capture(closure.enclosing, var),
+                    false);
+        }
+        closure.captured.add(var);
+        closure.function.captures.add(capture);
+        return closure.captured.size() - 1;
     }
 
     private void resolve(Stmt stmt) {
@@ -316,41 +516,57 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
     private void beginScope() {
-        scopes.push(new HashMap<String, Var>());
+        scopes.add(new ArrayList<>());
     }
     private void endScope() {
-        for (String i : scopes.peek().keySet()) {
-                Var var = scopes.peek().get(i);
-                if(var.state != VarState.USED){
-                    Lox.error(var.name,
-                            "The variable was defined or declared but not used.");
-                }
+        List<Var> scope = scopes.remove(scopes.size() - 1);
+        closure.used -= scope.size();
+        for (Var var : scope) {
+            if (var.state != VarState.USED) {
+                Lox.error(var.name,
+                        "The variable was defined or declared but not used.");
+            }
+            // Only now is every assignment to it known.
+            if (var.assigned && var.captures != null) {
+                for (Capture capture : var.captures) capture.cell = true;
+            }
+            if (var.shadowed != null) {
+                bindings.put(var.key, var.shadowed);
+            } else {
+                bindings.remove(var.key);
+            }
         }
-
-        scopes.pop();
     }
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    private List<Var> innermost() {
+        return scopes.get(scopes.size() - 1);
+    }
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return -1;
 
-        Map<String, Var> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        Var existing = bindings.get(name.lexeme());
+        if (existing != null && existing.scope == scopes.size() - 1) {
             Lox.error(name,
                     "Already a variable with this name in this scope.");
+            existing.state = VarState.DECLARED;
+            return existing.slot;
         }
-        scope.put(name.lexeme, new Var(name, VarState.DECLARED));
+        return bind(name.lexeme(), name, VarState.DECLARED).slot;
+    }
+    // Adds a local to the innermost scope in the next free frame slot.
+    private Var bind(String key, Token name, VarState state) {
+        Var var = new Var(name, key, state, closure.used++, scopes.size() - 1,
+                bindings.get(key), closure);
+        closure.frameSize = Math.max(closure.frameSize, closure.used);
+        innermost().add(var);
+        bindings.put(key, var);
+        return var;
     }
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, new Var(name, VarState.DEFINED));
+        bindings.get(name.lexeme()).state = VarState.DEFINED;
     }
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = 0; i < scopes.size(); i++) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
-            }
-        }
+    private void initializing(Token name, boolean initializing) {
+        if (scopes.isEmpty()) return;
+        bindings.get(name.lexeme()).initializing = initializing;
     }
-
-
-}
\ No newline at end of file
+}
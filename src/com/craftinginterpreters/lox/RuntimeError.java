@@ -6,5 +6,13 @@ class RuntimeError extends RuntimeException {
     RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+
+        LoxEvents.RuntimeErrorRaised event =
+                new LoxEvents.RuntimeErrorRaised();
+        if (event.shouldCommit()) {
+            event.message = message;
+            event.line = token.line;
+            event.commit();
+        }
     }
 }
\ No newline at end of file
@@ -1,54 +1,83 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
-class Scanner {
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-        keywords.put("break",  BREAK);
-    }
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+class Scanner implements TokenSource {
+    // Number literals with at most this many digits, fractional ones
+    // included, are parsed straight from the source.
+    private static final int EXACT_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15
+    };
+
+    private final CharSequence source;
+    // No lexeme starting at or after this offset gets scanned.
+    private final int limit;
+    // Errors held back instead of reported, or null to report them as
+    // they're found.
+    private final List<Runnable> errors;
+    // The token the last scanToken() produced, if any.
+    private Token token = null;
     private int start = 0;
-    private int current = 0;
-    private int line = 1;
+    private int current;
+    private int line;
+    // Every distinct identifier is copied out of the source once and
+    // shared by all the tokens that spell it.
+    private String[] names = new String[64];
+    private int nameCount = 0;
+
+    Scanner(CharSequence source) {
+        this(source, 0, source.length(), 1, null);
+    }
 
-    Scanner(String source) {
+    // Scans just the lexemes that start in [start, limit), the last of
+    // which may run past limit. line must be the line start is on.
+    Scanner(CharSequence source, int start, int limit, int line,
+            List<Runnable> errors) {
         this.source = source;
+        this.current = start;
+        this.limit = limit;
+        this.line = line;
+        this.errors = errors;
     }
 
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+        Token scanned;
+        do {
+            scanned = next();
+            tokens.add(scanned);
+        } while (scanned.type != EOF);
+        return tokens;
+    }
+
+    @Override
+    public Token next() {
+        while (current < limit) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
+            if (token != null) {
+                Token next = token;
+                token = null;
+                return next;
+            }
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        return new Token(EOF, "", null, line);
+    }
+
+    // Where the next lexeme starts once next() has returned EOF.
+    int position() {
+        return current;
+    }
+
+    int line() {
+        return line;
     }
 
     private void scanToken() {
@@ -110,31 +139,139 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    error("Unexpected character.");
                 }
         }
     }
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        TokenType type = keyword();
+        if (type == IDENTIFIER) {
+            token = new Token(type, intern(), null, line);
+        } else {
+            addToken(type);
+        }
+    }
+    private TokenType keyword() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'b': return checkKeyword(1, "reak", BREAK);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start == offset + rest.length() &&
+                matches(start + offset, rest)) {
+            return type;
+        }
+        return IDENTIFIER;
+    }
+    private boolean matches(int offset, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (source.charAt(offset + i) != text.charAt(i)) return false;
+        }
+        return true;
+    }
+    // Looks the current lexeme up without copying it. The hash is the
+    // one String.hashCode() computes, so stored names compare cheaply.
+    private String intern() {
+        int hash = 0;
+        for (int i = start; i < current; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = names.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        for (String name = names[index]; name != null;
+             name = names[index]) {
+            if (name.hashCode() == hash &&
+                    name.length() == current - start &&
+                    matches(start, name)) {
+                return name;
+            }
+            index = (index + 1) & mask;
+        }
+
+        String name = text(start, current);
+        names[index] = name;
+        if (++nameCount * 2 > names.length) growNames();
+        return name;
+    }
+    private void growNames() {
+        String[] old = names;
+        names = new String[old.length * 2];
+        int mask = names.length - 1;
+        for (String name : old) {
+            if (name == null) continue;
+            int hash = name.hashCode();
+            int index = (hash ^ (hash >>> 16)) & mask;
+            while (names[index] != null) index = (index + 1) & mask;
+            names[index] = name;
+        }
     }
     private void number() {
-        while (isDigit(peek())) advance();
+        int digits = 1;
+        while (isDigit(peek())) {
+            advance();
+            digits++;
+        }
 
         // Look for a fractional part.
+        int fractionDigits = 0;
         if (peek() == '.' && isDigit(peekNext())) {
             // Consume the "."
             advance();
 
-            while (isDigit(peek())) advance();
+            while (isDigit(peek())) {
+                advance();
+                fractionDigits++;
+            }
+        }
+
+        addToken(NUMBER, parseNumber(digits + fractionDigits, fractionDigits));
+    }
+    // Both the digits and the power of ten are exact doubles when there
+    // are few enough digits, so one division gives the correctly rounded
+    // value. Longer literals go through Double.parseDouble().
+    private double parseNumber(int digits, int fractionDigits) {
+        if (digits > EXACT_DIGITS) {
+            return Double.parseDouble(text(start, current));
         }
 
-        addToken(NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        long value = 0;
+        for (int i = start; i < current; i++) {
+            char c = source.charAt(i);
+            if (c != '.') value = value * 10 + (c - '0');
+        }
+        return value / POWERS_OF_TEN[fractionDigits];
     }
     private void string(){
         while(peek() != '"' && !isAtEnd()){
@@ -143,13 +280,13 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            error("Unterminated string.");
             return;
         }
         // The closing "
         advance();
 
-        String value = source.substring(start + 1, current-1);
+        String value = text(start + 1, current - 1);
         addToken(STRING, value);
     }
     private void longComment(){
@@ -199,8 +336,19 @@ class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        token = new Token(type, source, start, current - start,
+                literal, line);
+    }
+    private void error(String message) {
+        if (errors == null) {
+            Lox.error(line, message);
+        } else {
+            int errorLine = line;
+            errors.add(() -> Lox.error(errorLine, message));
+        }
+    }
+    private String text(int from, int to) {
+        return source.subSequence(from, to).toString();
     }
 
 
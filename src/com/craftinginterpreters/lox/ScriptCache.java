@@ -0,0 +1,619 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps the resolved tree of every script run with --cache, so running the
+// same source again skips scanning, parsing and resolving. Entries are
+// named by a SHA-256 of the source. Each holds a table of the strings in
+// the tree followed by its nodes in prefix order, along with what the
+// Resolver filled in. Caches the runtime fills in are left out.
+final class ScriptCache {
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    // Bump whenever the encoding or the shape of the tree changes, so old
+    // entries are treated as misses.
+    private static final int VERSION = 5;
+
+    private static final int BLOCK = 1, CLASS = 2, EXPRESSION = 3,
+            FUNCTION = 4, IF = 5, PRINT = 6, RETURN = 7, VAR = 8, WHILE = 9,
+            BREAK = 10, FOR = 11;
+    private static final int ASSIGN = 1, BINARY = 2, CALL = 3, GET = 4,
+            GROUPING = 5, LITERAL = 6, LOGICAL = 7, SET = 8, SUPER = 9,
+            THIS = 10, UNARY = 11, TERNARY = 12, VARIABLE = 13;
+    private static final int NIL = 0, TRUE = 1, FALSE = 2, NUMBER = 3,
+            STRING = 4;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Path directory;
+
+    ScriptCache(Path directory) {
+        this.directory = directory;
+    }
+
+    static Path defaultDirectory() {
+        String directory = System.getenv("LOX_CACHE_DIR");
+        if (directory != null) return Paths.get(directory);
+        return Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+    }
+
+    static String key(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // Returns null when there's no usable entry for key.
+    // Global slots are given out by globals, which the script will run in.
+    List<Stmt> load(String key, Environment globals) {
+        try {
+            byte[] bytes = Files.readAllBytes(entry(key));
+            return new Reader(bytes, globals).script();
+        } catch (IOException | RuntimeException error) {
+            // A missing, stale or damaged entry is just a miss.
+            return null;
+        }
+    }
+
+    // Failing to write an entry only costs the next run its head start, so
+    // errors are ignored. Entries are written to a temporary file and
+    // moved into place, so concurrent runs never see half of one.
+    void store(String key, List<Stmt> statements) {
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                new Writer().script(statements, out);
+            }
+            Files.move(temporary, entry(key),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException error) {
+            try {
+                if (temporary != null) Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Path entry(String key) {
+        return directory.resolve(key + ".loxc");
+    }
+
+    private static final class Writer
+            implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream nodes =
+                new ByteArrayOutputStream();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> table = new ArrayList<>();
+        private ByteArrayOutputStream out = nodes;
+
+        void script(List<Stmt> statements, OutputStream file)
+                throws IOException {
+            statements(statements);
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            out = header;
+            writeInt(MAGIC);
+            writeInt(VERSION);
+            writeInt(table.size());
+            for (String string : table) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                writeInt(utf8.length);
+                header.write(utf8, 0, utf8.length);
+            }
+
+            header.writeTo(file);
+            nodes.writeTo(file);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            out.write(BLOCK);
+            statements(stmt.statements);
+            writeInt(stmt.firstSlot);
+            writeInt(stmt.frameSize);
+            return null;
+        }
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            out.write(CLASS);
+            token(stmt.name);
+            expr(stmt.superclass);
+            writeInt(stmt.methods.size());
+            for (Stmt.Function method : stmt.methods) {
+                method.accept(this);
+            }
+            writeInt(stmt.slot);
+            writeInt(stmt.superclassSlot);
+            return null;
+        }
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            out.write(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            out.write(FUNCTION);
+            token(stmt.name);
+            tokens(stmt.params);
+            statements(stmt.body);
+            writeInt(stmt.slot);
+            writeInt(stmt.frameSize);
+            writeInt(stmt.captures.size());
+            for (Capture capture : stmt.captures) {
+                out.write(capture.local ? TRUE : FALSE);
+                writeInt(capture.index);
+                out.write(capture.cell ? TRUE : FALSE);
+            }
+            return null;
+        }
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            out.write(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            out.write(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            out.write(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            out.write(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            writeInt(stmt.slot);
+            return null;
+        }
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            out.write(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            out.write(FOR);
+            stmt(stmt.initializer);
+            expr(stmt.condition);
+            expr(stmt.increment);
+            stmt(stmt.body);
+            writeInt(stmt.firstSlot);
+            writeInt(stmt.frameSize);
+            return null;
+        }
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            out.write(BREAK);
+            token(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            out.write(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            writeInt(expr.capture);
+            out.write(expr.local ? TRUE : FALSE);
+            writeInt(expr.slot);
+            return null;
+        }
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            out.write(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            out.write(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            writeInt(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                expr(argument);
+            }
+            out.write(expr.tail ? TRUE : FALSE);
+            return null;
+        }
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            out.write(GET);
+            expr(expr.object);
+            token(expr.name);
+            return null;
+        }
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            out.write(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            out.write(LITERAL);
+            value(expr.value);
+            return null;
+        }
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            out.write(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            out.write(SET);
+            expr(expr.object);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            out.write(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            expr(expr.receiver);
+            writeInt(expr.capture);
+            return null;
+        }
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            out.write(THIS);
+            token(expr.keyword);
+            writeInt(expr.capture);
+            out.write(expr.local ? TRUE : FALSE);
+            writeInt(expr.slot);
+            return null;
+        }
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            out.write(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            out.write(TERNARY);
+            expr(expr.condition);
+            expr(expr.ifTruePart);
+            expr(expr.ifFalsePart);
+            return null;
+        }
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            out.write(VARIABLE);
+            token(expr.name);
+            writeInt(expr.capture);
+            out.write(expr.local ? TRUE : FALSE);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        private void statements(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+        }
+        private void stmt(Stmt stmt) {
+            if (stmt == null) {
+                out.write(0);
+            } else {
+                stmt.accept(this);
+            }
+        }
+        private void expr(Expr expr) {
+            if (expr == null) {
+                out.write(0);
+            } else {
+                expr.accept(this);
+            }
+        }
+        private void tokens(List<Token> tokens) {
+            writeInt(tokens.size());
+            for (Token token : tokens) {
+                token(token);
+            }
+        }
+        private void token(Token token) {
+            out.write(token.type.ordinal());
+            string(token.lexeme());
+            writeInt(token.line);
+            value(token.literal);
+        }
+        private void value(Object value) {
+            if (value == null) {
+                out.write(NIL);
+            } else if (value instanceof Boolean) {
+                out.write((boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                out.write(NUMBER);
+                long bits = Double.doubleToRawLongBits((double)value);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int)(bits >>> shift));
+                }
+            } else {
+                out.write(STRING);
+                string((String)value);
+            }
+        }
+        private void string(String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = table.size();
+                strings.put(string, index);
+                table.add(string);
+            }
+            writeInt(index);
+        }
+        // Zigzag varints, so the small numbers that make up most of the
+        // tree and the -1 of unresolved slots take a byte.
+        private void writeInt(int value) {
+            int bits = (value << 1) ^ (value >> 31);
+            while ((bits & ~0x7f) != 0) {
+                out.write((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            out.write(bits);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private final Environment globals;
+        private int position = 0;
+        private String[] strings;
+
+        Reader(byte[] bytes, Environment globals) {
+            this.bytes = bytes;
+            this.globals = globals;
+        }
+
+        List<Stmt> script() throws IOException {
+            if (readInt() != MAGIC || readInt() != VERSION) {
+                throw new IOException("Not a cache entry for this version.");
+            }
+            strings = new String[readCount()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = readCount();
+                strings[i] = new String(bytes, position, length,
+                        StandardCharsets.UTF_8);
+                position += length;
+            }
+
+            List<Stmt> statements = statements();
+            if (position != bytes.length) {
+                throw new IOException("Trailing bytes in cache entry.");
+            }
+            return statements;
+        }
+
+        private List<Stmt> statements() {
+            int count = readCount();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+        private Stmt stmt() {
+            int tag = bytes[position++];
+            return switch (tag) {
+                case 0 -> null;
+                case BLOCK -> {
+                    Stmt.Block stmt = new Stmt.Block(statements());
+                    stmt.firstSlot = readInt();
+                    stmt.frameSize = readInt();
+                    yield stmt;
+                }
+                case CLASS -> {
+                    Token name = token();
+                    Expr.Variable superclass = (Expr.Variable)expr();
+                    int count = readCount();
+                    List<Stmt.Function> methods = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        methods.add((Stmt.Function)stmt());
+                    }
+                    Stmt.Class stmt = new Stmt.Class(name, superclass,
+                            methods);
+                    stmt.slot = readInt();
+                    stmt.superclassSlot = readInt();
+                    yield stmt;
+                }
+                case EXPRESSION -> new Stmt.Expression(expr());
+                case FUNCTION -> {
+                    Stmt.Function stmt = new Stmt.Function(token(),
+                            tokens());
+                    stmt.body = statements();
+                    stmt.slot = readInt();
+                    stmt.frameSize = readInt();
+                    int count = readCount();
+                    stmt.captures = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        stmt.captures.add(new Capture(
+                                bytes[position++] == TRUE, readInt(),
+                                bytes[position++] == TRUE));
+                    }
+                    yield stmt;
+                }
+                case IF -> new Stmt.If(expr(), stmt(), stmt());
+                case PRINT -> new Stmt.Print(expr());
+                case RETURN -> new Stmt.Return(token(), expr());
+                case VAR -> {
+                    Stmt.Var stmt = new Stmt.Var(token(), expr());
+                    stmt.slot = readInt();
+                    yield stmt;
+                }
+                case WHILE -> new Stmt.While(expr(), stmt());
+                case BREAK -> new Stmt.Break(token());
+                case FOR -> {
+                    Stmt.For stmt = new Stmt.For(stmt(), expr(), expr(),
+                            stmt());
+                    stmt.firstSlot = readInt();
+                    stmt.frameSize = readInt();
+                    yield stmt;
+                }
+                default -> throw new IllegalStateException(
+                        "Bad statement tag.");
+            };
+        }
+        private Expr expr() {
+            int tag = bytes[position++];
+            return switch (tag) {
+                case 0 -> null;
+                case ASSIGN -> {
+                    Expr.Assign expr = new Expr.Assign(token(), expr());
+                    expr.capture = readInt();
+                    expr.local = bytes[position++] == TRUE;
+                    expr.slot = slot(expr.name, expr.capture, expr.local,
+                            readInt());
+                    yield expr;
+                }
+                case BINARY -> new Expr.Binary(expr(), token(), expr());
+                case CALL -> {
+                    Expr callee = expr();
+                    Token paren = token();
+                    int count = readCount();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(expr());
+                    }
+                    Expr.Call expr = new Expr.Call(callee, paren, arguments);
+                    expr.tail = bytes[position++] == TRUE;
+                    yield expr;
+                }
+                case GET -> new Expr.Get(expr(), token());
+                case GROUPING -> new Expr.Grouping(expr());
+                case LITERAL -> new Expr.Literal(value());
+                case LOGICAL -> new Expr.Logical(expr(), token(), expr());
+                case SET -> new Expr.Set(expr(), token(), expr());
+                case SUPER -> {
+                    Expr.Super expr = new Expr.Super(token(), token(),
+                            (Expr.This)expr());
+                    expr.capture = readInt();
+                    yield expr;
+                }
+                case THIS -> {
+                    Expr.This expr = new Expr.This(token());
+                    expr.capture = readInt();
+                    expr.local = bytes[position++] == TRUE;
+                    expr.slot = readInt();
+                    yield expr;
+                }
+                case UNARY -> new Expr.Unary(token(), expr());
+                case TERNARY -> new Expr.Ternary(expr(), expr(), expr());
+                case VARIABLE -> {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.capture = readInt();
+                    expr.local = bytes[position++] == TRUE;
+                    expr.slot = slot(expr.name, expr.capture, expr.local,
+                            readInt());
+                    yield expr;
+                }
+                default -> throw new IllegalStateException(
+                        "Bad expression tag.");
+            };
+        }
+        private List<Token> tokens() {
+            int count = readCount();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tokens.add(token());
+            }
+            return tokens;
+        }
+        private Token token() {
+            TokenType type = TYPES[bytes[position++]];
+            String lexeme = strings[readInt()];
+            int line = readInt();
+            return new Token(type, lexeme, value(), line);
+        }
+        // Global slots are only good for the globals that gave them out,
+        // so they're given out again rather than read back.
+        private int slot(Token name, int capture, boolean local, int slot) {
+            if (capture != -1 || local) return slot;
+            return globals.globalSlot(name.lexeme());
+        }
+        private Object value() {
+            return switch (bytes[position++]) {
+                case NIL -> null;
+                case TRUE -> true;
+                case FALSE -> false;
+                case NUMBER -> {
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | (bytes[position++] & 0xff);
+                    }
+                    yield Double.longBitsToDouble(bits);
+                }
+                case STRING -> strings[readInt()];
+                default -> throw new IllegalStateException("Bad value tag.");
+            };
+        }
+        // Every element or character takes at least a byte, so a count
+        // bigger than what's left comes from a damaged entry. It's
+        // rejected before anything is allocated for it.
+        private int readCount() {
+            int count = readInt();
+            if (count < 0 || count > bytes.length - position) {
+                throw new IllegalStateException("Bad count in cache entry.");
+            }
+            return count;
+        }
+        private int readInt() {
+            int bits = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = bytes[position++];
+                bits |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            return (bits >>> 1) ^ -(bits & 1);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class Shape {
+    // Past this many fields a name lookup goes through a map instead of
+    // scanning the names.
+    private static final int LINEAR_LIMIT = 8;
+
+    private final String[] names;
+    private final Map<String, Shape> transitions = new HashMap<>();
+    private Map<String, Integer> indexes = null;
+
+    Shape() {
+        this.names = new String[0];
+    }
+
+    private Shape(String[] names) {
+        this.names = names;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    int indexOf(String name) {
+        if (names.length > LINEAR_LIMIT) {
+            if (indexes == null) {
+                indexes = new HashMap<>();
+                for (int i = 0; i < names.length; i++) {
+                    indexes.put(names[i], i);
+                }
+            }
+            Integer index = indexes.get(name);
+            return index == null ? -1 : index;
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    // Every object that adds the same fields in the same order ends up
+    // sharing one Shape, so the field layout is stored once.
+    Shape with(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            String[] extended = new String[names.length + 1];
+            System.arraycopy(names, 0, extended, 0, names.length);
+            extended[names.length] = name;
+            next = new Shape(extended);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
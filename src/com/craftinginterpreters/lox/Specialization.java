@@ -0,0 +1,60 @@
+package com.craftinginterpreters.lox;
+
+final class Specialization {
+    // Every Binary, Unary and Logical node starts out uninitialized, picks
+    // a specialized operation from the operands it sees first, and falls
+    // back to GENERIC for good the first time those operands don't fit.
+    static final int UNINITIALIZED  = 0;
+    static final int GENERIC        = 1;
+    static final int NUMBER_ADD     = 2;
+    static final int NUMBER_SUBTRACT = 3;
+    static final int NUMBER_MULTIPLY = 4;
+    static final int NUMBER_DIVIDE  = 5;
+    static final int NUMBER_GREATER = 6;
+    static final int NUMBER_GREATER_EQUAL = 7;
+    static final int NUMBER_LESS    = 8;
+    static final int NUMBER_LESS_EQUAL = 9;
+    static final int STRING_ADD     = 10;
+    static final int NUMBER_NEGATE  = 11;
+    static final int BOOLEAN_NOT    = 12;
+    static final int BOOLEAN_AND    = 13;
+    static final int BOOLEAN_OR     = 14;
+
+    private Specialization() {}
+
+    static int forBinary(TokenType operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return switch (operator) {
+                case PLUS -> NUMBER_ADD;
+                case MINUS -> NUMBER_SUBTRACT;
+                case STAR -> NUMBER_MULTIPLY;
+                case SLASH -> NUMBER_DIVIDE;
+                case GREATER -> NUMBER_GREATER;
+                case GREATER_EQUAL -> NUMBER_GREATER_EQUAL;
+                case LESS -> NUMBER_LESS;
+                case LESS_EQUAL -> NUMBER_LESS_EQUAL;
+                default -> GENERIC;
+            };
+        }
+        if (operator == TokenType.PLUS &&
+                left instanceof String && right instanceof String) {
+            return STRING_ADD;
+        }
+        return GENERIC;
+    }
+
+    static int forUnary(TokenType operator, Object right) {
+        if (operator == TokenType.MINUS && right instanceof Double) {
+            return NUMBER_NEGATE;
+        }
+        if (operator == TokenType.BANG && right instanceof Boolean) {
+            return BOOLEAN_NOT;
+        }
+        return GENERIC;
+    }
+
+    static int forLogical(TokenType operator, Object left) {
+        if (!(left instanceof Boolean)) return GENERIC;
+        return operator == TokenType.OR ? BOOLEAN_OR : BOOLEAN_AND;
+    }
+}
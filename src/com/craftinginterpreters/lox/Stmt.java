@@ -13,6 +13,7 @@ abstract class Stmt {
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
+    R visitForStmt(For stmt);
     R visitBreakStmt(Break stmt);
   }
   static class Block extends Stmt {
@@ -26,6 +27,9 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+
+    int firstSlot;
+    int frameSize;
   }
   static class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
@@ -42,6 +46,9 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+
+    int slot = -1;
+    int superclassSlot;
   }
   static class Expression extends Stmt {
     Expression(Expr expression) {
@@ -56,10 +63,9 @@ abstract class Stmt {
     final Expr expression;
   }
   static class Function extends Stmt {
-    Function(Token name, List<Token> params, List<Stmt> body) {
+    Function(Token name, List<Token> params) {
       this.name = name;
       this.params = params;
-      this.body = body;
     }
 
     @Override
@@ -69,7 +75,15 @@ abstract class Stmt {
 
     final Token name;
     final List<Token> params;
-    final List<Stmt> body;
+
+    List<Stmt> body;
+    List<Token> bodyTokens;
+    Resolver resolver;
+    List<Capture> captures;
+    int slot = -1;
+    int frameSize;
+    int calls;
+    volatile Jit.Code compiled;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -126,6 +140,8 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    int slot = -1;
   }
   static class While extends Stmt {
     While(Expr condition, Stmt body) {
@@ -141,6 +157,27 @@ abstract class Stmt {
     final Expr condition;
     final Stmt body;
   }
+  static class For extends Stmt {
+    For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    final Stmt initializer;
+    final Expr condition;
+    final Expr increment;
+    final Stmt body;
+
+    int firstSlot;
+    int frameSize;
+  }
   static class Break extends Stmt {
     Break(Token name) {
       this.name = name;
@@ -153,5 +190,6 @@ abstract class Stmt {
 
     final Token name;
   }
+
   abstract <R> R accept(Visitor<R> visitor);
 }
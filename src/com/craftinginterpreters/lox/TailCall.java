@@ -0,0 +1,23 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// A call in tail position that hasn't been made yet. The body returns it
+// in place of a value, and the trampoline in LoxFunction.call makes the
+// call once the caller's frame is gone. Each interpreter reuses one, so
+// its fields must be read before the next call starts.
+class TailCall {
+    LoxFunction function;
+    // Null for a plain function call, which uses the function's own
+    // receiver if it's a bound method.
+    LoxInstance receiver;
+    List<Object> arguments;
+
+    TailCall set(LoxFunction function, LoxInstance receiver,
+                 List<Object> arguments) {
+        this.function = function;
+        this.receiver = receiver;
+        this.arguments = arguments;
+        return this;
+    }
+}
@@ -2,18 +2,38 @@ package com.craftinginterpreters.lox;
 
 class Token {
     final TokenType type;
-    final String lexeme;
     final Object literal;
     final int line;
+    // Scanned tokens point into the source and only copy their text out
+    // of it the first time someone asks for it.
+    private final CharSequence source;
+    private final int start;
+    private final int length;
+    private String lexeme;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
-        this.type = type;
+        this(type, lexeme, 0, lexeme.length(), literal, line);
         this.lexeme = lexeme;
+    }
+
+    Token(TokenType type, CharSequence source, int start, int length,
+          Object literal, int line) {
+        this.type = type;
+        this.source = source;
+        this.start = start;
+        this.length = length;
         this.literal = literal;
         this.line = line;
     }
 
+    String lexeme() {
+        if (lexeme == null) {
+            lexeme = source.subSequence(start, start + length).toString();
+        }
+        return lexeme;
+    }
+
     public String toString() {
-        return type + " " + lexeme + " " + literal;
+        return type + " " + lexeme() + " " + literal;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,7 @@
+package com.craftinginterpreters.lox;
+
+// Hands the Parser one token at a time, so the whole token list never
+// has to exist. Keeps returning EOF once the input runs out.
+interface TokenSource {
+    Token next();
+}
@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by Interpreter.evaluateDouble() when a subtree specialized on
+// numbers produces something else. It carries the already computed value
+// so the caller can carry on generically without evaluating it again.
+class UnexpectedResult extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final Object value;
+
+    // Thrown on the fast path, so it skips the stack trace.
+    UnexpectedResult(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
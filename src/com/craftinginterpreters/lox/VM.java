@@ -0,0 +1,471 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class VM {
+    private static final int FRAMES_MAX = 4096;
+
+    private static class CallFrame {
+        VmClosure closure;
+        byte[] code;
+        Object[] constants;
+        int ip;
+        int base;
+    }
+
+    final Environment globals = new Environment();
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+    private final CallFrame[] frames = new CallFrame[FRAMES_MAX];
+    private int frameCount = 0;
+    private VmUpvalue openUpvalues = null;
+
+    VM() {
+        NativeFunctions nativeFunctions = new NativeFunctions(globals);
+        nativeFunctions.defineClock();
+        nativeFunctions.defineRandom();
+        nativeFunctions.defineUserInput();
+        nativeFunctions.defineUserInputString();
+        nativeFunctions.defineUserInputBoolean();
+        for (int i = 0; i < FRAMES_MAX; i++) {
+            frames[i] = new CallFrame();
+        }
+    }
+
+    void interpret(VmFunction script) {
+        try {
+            VmClosure closure = new VmClosure(script);
+            push(closure);
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            resetStack();
+        } catch (Exception InputMismatchException) {
+            Lox.reportNativeFuncError("Incorrect input type");
+            resetStack();
+        }
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.code;
+        Object[] constants = frame.constants;
+        int base = frame.base;
+
+        for (;;) {
+            byte instruction = code[frame.ip++];
+            switch (instruction) {
+                case OpCode.CONSTANT -> push(constants[readShort(frame)]);
+                case OpCode.NIL -> push(null);
+                case OpCode.TRUE -> push(true);
+                case OpCode.FALSE -> push(false);
+                case OpCode.POP -> stack[--stackTop] = null;
+                case OpCode.GET_LOCAL -> push(stack[base + readByte(frame)]);
+                case OpCode.SET_LOCAL ->
+                        stack[base + readByte(frame)] = peek(0);
+                case OpCode.GET_GLOBAL -> {
+                    Token name = (Token) constants[readShort(frame)];
+                    push(globals.get(name));
+                }
+                case OpCode.DEFINE_GLOBAL -> {
+                    String name = (String) constants[readShort(frame)];
+                    globals.define(name, pop());
+                }
+                case OpCode.SET_GLOBAL -> {
+                    Token name = (Token) constants[readShort(frame)];
+                    globals.assign(name, peek(0));
+                }
+                case OpCode.GET_UPVALUE -> {
+                    VmUpvalue upvalue =
+                            frame.closure.upvalues[readByte(frame)];
+                    push(upvalue.slot >= 0 ?
+                            stack[upvalue.slot] : upvalue.closed);
+                }
+                case OpCode.SET_UPVALUE -> {
+                    VmUpvalue upvalue =
+                            frame.closure.upvalues[readByte(frame)];
+                    if (upvalue.slot >= 0) {
+                        stack[upvalue.slot] = peek(0);
+                    } else {
+                        upvalue.closed = peek(0);
+                    }
+                }
+                case OpCode.GET_PROPERTY -> {
+                    String name = (String) constants[readShort(frame)];
+                    if (!(peek(0) instanceof VmInstance)) {
+                        throw error(frame, "Only instances have properties.");
+                    }
+                    VmInstance instance = (VmInstance) peek(0);
+                    int index = instance.shape.indexOf(name);
+                    if (index != -1) {
+                        stack[stackTop - 1] = instance.values[index];
+                    } else {
+                        stack[stackTop - 1] =
+                                bindMethod(frame, instance.klass, instance, name);
+                    }
+                }
+                case OpCode.SET_PROPERTY -> {
+                    String name = (String) constants[readShort(frame)];
+                    if (!(peek(1) instanceof VmInstance)) {
+                        throw error(frame, "Only instances have fields.");
+                    }
+                    Object value = pop();
+                    ((VmInstance) pop()).set(name, value);
+                    push(value);
+                }
+                case OpCode.GET_SUPER -> {
+                    String name = (String) constants[readShort(frame)];
+                    VmClass superclass = (VmClass) pop();
+                    stack[stackTop - 1] = bindMethod(frame, superclass,
+                            peek(0), name);
+                }
+                case OpCode.EQUAL -> {
+                    Object b = pop();
+                    stack[stackTop - 1] = Interpreter.isEqual(peek(0), b);
+                }
+                case OpCode.NOT_EQUAL -> {
+                    Object b = pop();
+                    stack[stackTop - 1] = !Interpreter.isEqual(peek(0), b);
+                }
+                case OpCode.GREATER -> {
+                    checkNumberOperands(frame);
+                    double b = (double) pop();
+                    stack[stackTop - 1] = (double) peek(0) > b;
+                }
+                case OpCode.GREATER_EQUAL -> {
+                    checkNumberOperands(frame);
+                    double b = (double) pop();
+                    stack[stackTop - 1] = (double) peek(0) >= b;
+                }
+                case OpCode.LESS -> {
+                    checkNumberOperands(frame);
+                    double b = (double) pop();
+                    stack[stackTop - 1] = (double) peek(0) < b;
+                }
+                case OpCode.LESS_EQUAL -> {
+                    checkNumberOperands(frame);
+                    double b = (double) pop();
+                    stack[stackTop - 1] = (double) peek(0) <= b;
+                }
+                case OpCode.ADD -> {
+                    Object b = pop();
+                    stack[stackTop - 1] = add(frame, peek(0), b);
+                }
+                case OpCode.SUBTRACT -> {
+                    checkNumberOperands(frame);
+                    double b = (double) pop();
+                    stack[stackTop - 1] = (double) peek(0) - b;
+                }
+                case OpCode.MULTIPLY -> {
+                    checkNumberOperands(frame);
+                    double b = (double) pop();
+                    stack[stackTop - 1] = (double) peek(0) * b;
+                }
+                case OpCode.DIVIDE -> {
+                    checkNumberOperands(frame);
+                    double b = (double) pop();
+                    if (b == 0) throw error(frame, "Can't divide by zero");
+                    stack[stackTop - 1] = (double) peek(0) / b;
+                }
+                case OpCode.NOT ->
+                        stack[stackTop - 1] = !Interpreter.isTruthy(peek(0));
+                case OpCode.NEGATE -> {
+                    if (!(peek(0) instanceof Double)) {
+                        throw error(frame, "Operand must be a number.");
+                    }
+                    stack[stackTop - 1] = -(double) peek(0);
+                }
+                case OpCode.PRINT ->
+                        System.out.println(Interpreter.stringify(pop()));
+                case OpCode.JUMP -> {
+                    int offset = readShort(frame);
+                    frame.ip += offset;
+                }
+                case OpCode.JUMP_IF_FALSE -> {
+                    int offset = readShort(frame);
+                    if (!Interpreter.isTruthy(peek(0))) frame.ip += offset;
+                }
+                case OpCode.JUMP_IF_NOT_BOOL -> {
+                    int offset = readShort(frame);
+                    if (!(peek(0) instanceof Boolean)) {
+                        stack[stackTop - 1] = null;
+                        frame.ip += offset;
+                    }
+                }
+                case OpCode.LOOP -> {
+                    int offset = readShort(frame);
+                    frame.ip -= offset;
+                }
+                case OpCode.CALL -> {
+                    int argCount = readByte(frame);
+                    callValue(frame, peek(argCount), argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.code;
+                    constants = frame.constants;
+                    base = frame.base;
+                }
+                case OpCode.INVOKE -> {
+                    String method = (String) constants[readShort(frame)];
+                    int argCount = readByte(frame);
+                    invoke(frame, method, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.code;
+                    constants = frame.constants;
+                    base = frame.base;
+                }
+                case OpCode.SUPER_INVOKE -> {
+                    String method = (String) constants[readShort(frame)];
+                    int argCount = readByte(frame);
+                    VmClass superclass = (VmClass) pop();
+                    invokeFromClass(frame, superclass, method, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.code;
+                    constants = frame.constants;
+                    base = frame.base;
+                }
+                case OpCode.CLOSURE -> {
+                    VmFunction function =
+                            (VmFunction) constants[readShort(frame)];
+                    VmClosure closure = new VmClosure(function);
+                    push(closure);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = readByte(frame) == 1;
+                        int index = readByte(frame);
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                }
+                case OpCode.CLOSE_UPVALUE -> {
+                    closeUpvalues(stackTop - 1);
+                    pop();
+                }
+                case OpCode.RETURN -> {
+                    Object result = pop();
+                    closeUpvalues(base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        stackTop = 0;
+                        return;
+                    }
+
+                    Arrays.fill(stack, base, stackTop, null);
+                    stackTop = base;
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    code = frame.code;
+                    constants = frame.constants;
+                    base = frame.base;
+                }
+                case OpCode.CLASS ->
+                        push(new VmClass((String) constants[readShort(frame)]));
+                case OpCode.INHERIT -> {
+                    Object superclass = peek(1);
+                    if (!(superclass instanceof VmClass)) {
+                        throw error(frame, "Superclass must be a class.");
+                    }
+                    VmClass subclass = (VmClass) peek(0);
+                    subclass.methods.putAll(((VmClass) superclass).methods);
+                    subclass.initializer = ((VmClass) superclass).initializer;
+                    stackTop--;
+                }
+                case OpCode.METHOD -> {
+                    String name = (String) constants[readShort(frame)];
+                    VmClosure method = (VmClosure) peek(0);
+                    VmClass klass = (VmClass) peek(1);
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) klass.initializer = method;
+                    stackTop--;
+                }
+                default -> throw error(frame,
+                        "Unknown opcode " + instruction + ".");
+            }
+        }
+    }
+
+    private void callValue(CallFrame frame, Object callee, int argCount) {
+        if (callee instanceof VmClosure) {
+            call(frame, (VmClosure) callee, argCount);
+        } else if (callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod) callee;
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(frame, bound.method, argCount);
+        } else if (callee instanceof VmClass) {
+            VmClass klass = (VmClass) callee;
+            stack[stackTop - argCount - 1] = new VmInstance(klass);
+            if (klass.initializer != null) {
+                call(frame, klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw error(frame, "Expected 0 arguments but got " +
+                        argCount + ".");
+            }
+        } else if (callee instanceof LoxCallable) {
+            LoxCallable function = (LoxCallable) callee;
+            if (argCount != function.arity()) {
+                throw error(frame, "Expected " + function.arity() +
+                        " arguments but got " + argCount + ".");
+            }
+            List<Object> arguments = new ArrayList<>(argCount);
+            for (int i = stackTop - argCount; i < stackTop; i++) {
+                arguments.add(stack[i]);
+            }
+            // Natives never reach back into the tree-walking interpreter.
+            Object result = function.call(null, arguments);
+            stackTop -= argCount + 1;
+            push(result);
+        } else {
+            throw error(frame, "Can only call functions and classes.");
+        }
+    }
+    private void invoke(CallFrame frame, String name, int argCount) {
+        Object receiver = peek(argCount);
+        if (!(receiver instanceof VmInstance)) {
+            throw error(frame, "Only instances have properties.");
+        }
+
+        VmInstance instance = (VmInstance) receiver;
+        int index = instance.shape.indexOf(name);
+        if (index != -1) {
+            Object field = instance.values[index];
+            stack[stackTop - argCount - 1] = field;
+            callValue(frame, field, argCount);
+            return;
+        }
+
+        invokeFromClass(frame, instance.klass, name, argCount);
+    }
+    private void invokeFromClass(CallFrame frame, VmClass klass,
+                                 String name, int argCount) {
+        VmClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error(frame, "Undefined property '" + name + "'.");
+        }
+        call(frame, method, argCount);
+    }
+    private VmBoundMethod bindMethod(CallFrame frame, VmClass klass,
+                                     Object receiver, String name) {
+        VmClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error(frame, "Undefined property '" + name + "'.");
+        }
+        return new VmBoundMethod(receiver, method);
+    }
+    private void call(CallFrame caller, VmClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw error(caller, "Expected " + closure.function.arity +
+                    " arguments but got " + argCount + ".");
+        }
+        // The caller returns whatever a call just before its RETURN gives
+        // back, so the callee can take over the caller's frame. Tail
+        // calls then run in constant frames.
+        if (frameCount > 1 && caller.code[caller.ip] == OpCode.RETURN) {
+            int start = stackTop - argCount - 1;
+            closeUpvalues(caller.base);
+            System.arraycopy(stack, start, stack, caller.base, argCount + 1);
+            int top = caller.base + argCount + 1;
+            Arrays.fill(stack, top, stackTop, null);
+            stackTop = top;
+            frameCount--;
+        }
+        if (frameCount == FRAMES_MAX) {
+            throw error(caller, "Stack overflow.");
+        }
+        call(closure, argCount);
+    }
+    private void call(VmClosure closure, int argCount) {
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.code = closure.function.chunk.code;
+        frame.constants = closure.function.chunk.constants;
+        frame.ip = 0;
+        frame.base = stackTop - argCount - 1;
+    }
+    private VmUpvalue captureUpvalue(int slot) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        VmUpvalue created = new VmUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+    private Object add(CallFrame frame, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + (String) right;
+        }
+        if (left instanceof String && right instanceof Double) {
+            return (String) left + ((Double) right).intValue();
+        }
+        if (left instanceof Double && right instanceof String) {
+            return ((Double) left).intValue() + (String) right;
+        }
+        if (left instanceof String && right instanceof Boolean) {
+            return (String) left + String.valueOf((Boolean) right);
+        }
+        if (left instanceof Boolean && right instanceof String) {
+            return String.valueOf((Boolean) left) + (String) right;
+        }
+        throw error(frame, "Operands must be two numbers or two strings.");
+    }
+    private void checkNumberOperands(CallFrame frame) {
+        if (peek(0) instanceof Double && peek(1) instanceof Double) return;
+        throw error(frame, "Operands must be numbers.");
+    }
+    private int readByte(CallFrame frame) {
+        return frame.code[frame.ip++] & 0xff;
+    }
+    private int readShort(CallFrame frame) {
+        frame.ip += 2;
+        return ((frame.code[frame.ip - 2] & 0xff) << 8) |
+                (frame.code[frame.ip - 1] & 0xff);
+    }
+    private void push(Object value) {
+        if (stackTop == stack.length) {
+            stack = Arrays.copyOf(stack, stackTop * 2);
+        }
+        stack[stackTop++] = value;
+    }
+    private Object pop() {
+        Object value = stack[--stackTop];
+        stack[stackTop] = null;
+        return value;
+    }
+    private Object peek(int distance) {
+        return stack[stackTop - 1 - distance];
+    }
+    private void resetStack() {
+        Arrays.fill(stack, null);
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+    private RuntimeError error(CallFrame frame, String message) {
+        int line = frame.closure.function.chunk.getLine(frame.ip - 1);
+        return new RuntimeError(new Token(TokenType.EOF, "", null, line),
+                message);
+    }
+}
@@ -0,0 +1,21 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmClass {
+    final String name;
+    final Map<String, VmClosure> methods = new HashMap<>();
+    VmClosure initializer;
+    final Shape rootShape = new Shape();
+    int fieldCapacity = 0;
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
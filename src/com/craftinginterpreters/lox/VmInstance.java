@@ -0,0 +1,35 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+class VmInstance {
+    final VmClass klass;
+    Shape shape;
+    Object[] values;
+
+    VmInstance(VmClass klass) {
+        this.klass = klass;
+        this.shape = klass.rootShape;
+        this.values = new Object[klass.fieldCapacity];
+    }
+
+    void set(String name, Object value) {
+        int index = shape.indexOf(name);
+        if (index == -1) {
+            shape = shape.with(name);
+            index = shape.size() - 1;
+            if (index == values.length) {
+                values = Arrays.copyOf(values, index + 1);
+                if (klass.fieldCapacity < values.length) {
+                    klass.fieldCapacity = values.length;
+                }
+            }
+        }
+        values[index] = value;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
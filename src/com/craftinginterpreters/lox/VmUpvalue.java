@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox;
+
+class VmUpvalue {
+    // While open, the captured variable still lives on the VM stack at
+    // slot. Closing copies it into closed and sets slot to -1.
+    int slot;
+    Object closed;
+    VmUpvalue next;
+
+    VmUpvalue(int slot, VmUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
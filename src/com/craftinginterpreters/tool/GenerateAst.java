@@ -13,33 +13,48 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
+                "Assign   : Token name, Expr value ; boolean local, int slot," +
+                            " int capture = -1",
+                "Binary   : Expr left, Token operator, Expr right ; int specialization",
+                "Call     : Expr callee, Token paren, List<Expr> arguments ;" +
+                            " boolean tail",
+                "Get      : Expr object, Token name ; PropertyCache cache",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
-                "Logical  : Expr left, Token operator, Expr right",
-                "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
-                "Unary    : Token operator, Expr right",
+                "Logical  : Expr left, Token operator, Expr right ; int specialization",
+                "Set      : Expr object, Token name, Expr value ; PropertyCache cache",
+                "Super    : Token keyword, Token method, Expr.This receiver ;" +
+                            " int capture = -1, LoxClass cachedClass," +
+                            " LoxFunction cachedMethod",
+                "This     : Token keyword ; boolean local, int slot," +
+                            " int capture = -1",
+                "Unary    : Token operator, Expr right ; int specialization",
                 "Ternary  : Expr condition, Expr ifTruePart, Expr ifFalsePart",
-                "Variable : Token name"
+                "Variable : Token name ; boolean local, int slot," +
+                            " int capture = -1"
         ));
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+                "Block      : List<Stmt> statements ;" +
+                            " int firstSlot, int frameSize",
                 "Class      : Token name, Expr.Variable superclass," +
-                            " List<Stmt.Function> methods",
+                            " List<Stmt.Function> methods ; int slot = -1," +
+                            " int superclassSlot",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params," +
-                            " List<Stmt> body",
+                "Function   : Token name, List<Token> params ;" +
+                            " List<Stmt> body, List<Token> bodyTokens," +
+                            " Resolver resolver, List<Capture> captures," +
+                            " int slot = -1," +
+                            " int frameSize, int calls," +
+                            " volatile Jit.Code compiled",
                 "If         : Expr condition, Stmt thenBranch," +
                             " Stmt elseBranch",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
+                "Var        : Token name, Expr initializer ; int slot = -1",
                 "While      : Expr condition, Stmt body",
+                "For        : Stmt initializer, Expr condition," +
+                            " Expr increment, Stmt body ; int firstSlot," +
+                            " int frameSize",
                 "Break      : Token name"
         ));
     }
@@ -61,8 +76,11 @@ public class GenerateAst {
         // The AST classes.
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fieldLists = type.split(":")[1].split(";");
+            String fields = fieldLists[0].trim();
+            String resolvedFields = fieldLists.length > 1 ?
+                    fieldLists[1].trim() : null;
+            defineType(writer, baseName, className, fields, resolvedFields);
         }
 
         // The base accept() method.
@@ -85,7 +103,7 @@ public class GenerateAst {
     }
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String resolvedFieldList) {
         writer.println("  static class " + className + " extends " +
                 baseName + " {");
 
@@ -115,6 +133,16 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        // Fields after the ';' aren't constructor parameters. They start
+        // out empty and are filled in by the Resolver, or by the
+        // Interpreter for its inline caches.
+        if (resolvedFieldList != null) {
+            writer.println();
+            for (String field : resolvedFieldList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
 }
@@ -0,0 +1,67 @@
+#!/bin/bash
+# Runs every script in test/lox under each way of running Lox and checks
+# its output and exit status against the .out file next to it. A
+# <name>.<mode>.out file replaces <name>.out for that mode.
+#
+#   test/run.sh [mode...]
+#
+# Modes: default vm jit lazy stream cache. Scripts run on the default
+# thread stack, so recursion limits are checked as users get them.
+
+cd "$(dirname "$0")/.." || exit 1
+
+modes=("$@")
+[ ${#modes[@]} -eq 0 ] && modes=(default vm jit lazy stream cache)
+
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+classes=$work/classes
+cache=$work/cache
+actual=$work/actual
+
+# Built here rather than by Maven so any checkout can be tested as is.
+javac -nowarn -d "$classes" $(find src/com/craftinginterpreters/lox \
+        -name '*.java') || exit 1
+
+lox() {
+    timeout 120 java "$@" > "$actual" 2>&1
+    echo "exit $?" >> "$actual"
+}
+
+failed=0
+passed=0
+for mode in "${modes[@]}"; do
+    for script in test/lox/*.lox; do
+        name=${script%.lox}
+        expected=$name.out
+        [ -f "$name.$mode.out" ] && expected=$name.$mode.out
+
+        case $mode in
+            default) runs=(-cp $classes com.craftinginterpreters.lox.Lox) ;;
+            # Compile every function on its first call, before running it.
+            # The JIT stays off on one processor, so claim two.
+            jit) runs=(-XX:ActiveProcessorCount=2 -Dlox.jit.threshold=1
+                       -Dlox.jit.sync=true
+                       -cp $classes com.craftinginterpreters.lox.Lox --jit) ;;
+            *) runs=(-cp $classes com.craftinginterpreters.lox.Lox
+                     --$mode) ;;
+        esac
+
+        # The cache is checked cold, then warm from the entry just written.
+        passes=1
+        [ "$mode" = cache ] && passes=2
+        for ((pass = 1; pass <= passes; pass++)); do
+            LOX_CACHE_DIR=$cache lox "${runs[@]}" "$script"
+            if cmp -s "$expected" "$actual"; then
+                passed=$((passed + 1))
+            else
+                failed=$((failed + 1))
+                echo "FAIL $mode $script"
+                diff "$expected" "$actual" | head -10
+            fi
+        done
+    done
+done
+
+echo "$passed passed, $failed failed."
+[ $failed -eq 0 ]